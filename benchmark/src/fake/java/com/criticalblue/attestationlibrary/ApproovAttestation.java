@@ -0,0 +1,142 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        ApproovAttestation.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.attestationlibrary;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Base64;
+
+/**
+ * Benchmark fake of the Approov SDK. Token fetches take a configurable simulated latency and fail at a configurable
+ * rate. A successful fetch for a URL makes the certificate registered for the URL's host with setServerCert()
+ * available through getCert(), as the real SDK does with the certificate it verified for the host.
+ */
+public final class ApproovAttestation {
+
+    // Result of a token fetch
+    public enum AttestationResult {
+        SUCCESS,
+        FAILURE
+    }
+
+    // Lifetime of the tokens issued by the fake
+    private static final long TOKEN_LIFETIME_SECONDS = 300;
+
+    // The shared instance
+    private static final ApproovAttestation shared = new ApproovAttestation();
+
+    // Simulated latency of a token fetch
+    private static volatile long latencyNanos = 0;
+
+    // Simulated rate (0.0 to 1.0) of failed token fetches
+    private static volatile double failureRate = 0.0;
+
+    // Map of hosts to the certificates they present, made available through getCert() by a token fetch
+    private static final ConcurrentMap<String, byte[]> serverCerts = new ConcurrentHashMap<String, byte[]>();
+
+    // Map of hosts to the certificates cached by the SDK
+    private final ConcurrentMap<String, byte[]> certs = new ConcurrentHashMap<String, byte[]>();
+
+    private ApproovAttestation() {
+    }
+
+    public static ApproovAttestation shared() {
+        return shared;
+    }
+
+    // Set the simulated latency of a token fetch
+    public static void setLatencyMicros(long latencyMicros) {
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    // Set the simulated rate (0.0 to 1.0) of failed token fetches
+    public static void setFailureRate(double rate) {
+        failureRate = rate;
+    }
+
+    // Register the DER encoded certificate a host presents
+    public static void setServerCert(String host, byte[] cert) {
+        serverCerts.put(host, cert);
+    }
+
+    public TokenInterface.ApproovResults fetchApproovTokenAndWait() {
+        return fetchApproovTokenAndWait(null);
+    }
+
+    public TokenInterface.ApproovResults fetchApproovTokenAndWait(String url) {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            return new TokenInterface.ApproovResults(AttestationResult.FAILURE, "");
+        }
+        if (url != null) {
+            String host = hostOf(url);
+            byte[] cert = serverCerts.get(host);
+            if (cert != null) {
+                certs.put(host, cert);
+            }
+        }
+        return new TokenInterface.ApproovResults(AttestationResult.SUCCESS, createToken());
+    }
+
+    public void fetchApproovToken(TokenInterface callback) {
+        callback.approovTokenFetchResult(fetchApproovTokenAndWait(null));
+    }
+
+    public void fetchApproovToken(TokenInterface callback, String url) {
+        callback.approovTokenFetchResult(fetchApproovTokenAndWait(url));
+    }
+
+    public void setTokenPayloadValue(String value) throws IllegalArgumentException {
+    }
+
+    public byte[] getCert(String host) {
+        return certs.get(host);
+    }
+
+    public void clearCerts() {
+        certs.clear();
+    }
+
+    // Get the host of a URL, or the argument itself if it is a plain hostname
+    private static String hostOf(String url) {
+        if (url.indexOf("://") < 0) {
+            return url;
+        }
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    // Create an unsigned JWT carrying an expiry claim
+    private static String createToken() {
+        long expiry = System.currentTimeMillis() / 1000 + TOKEN_LIFETIME_SECONDS;
+        Charset utf8 = Charset.forName("UTF-8");
+        int flags = Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP;
+        return Base64.encodeToString("{\"alg\":\"none\"}".getBytes(utf8), flags) + "."
+            + Base64.encodeToString(("{\"exp\":" + expiry + "}").getBytes(utf8), flags) + ".";
+    }
+
+}
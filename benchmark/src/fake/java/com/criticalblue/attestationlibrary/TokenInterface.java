@@ -0,0 +1,47 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        TokenInterface.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.attestationlibrary;
+
+/**
+ * Benchmark fake of the Approov SDK's token callback interface and fetch results
+ */
+public interface TokenInterface {
+
+    void approovTokenFetchResult(ApproovResults results);
+
+    // Result of a token fetch
+    class ApproovResults {
+        private final ApproovAttestation.AttestationResult result;
+        private final String token;
+
+        public ApproovResults(ApproovAttestation.AttestationResult result, String token) {
+            this.result = result;
+            this.token = token;
+        }
+
+        public ApproovResults(ApproovResults results) {
+            this(results.result, results.token);
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public ApproovAttestation.AttestationResult getResult() {
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaHttpPlugin.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.synconset.cordovahttp;
+
+import com.github.kevinsawicki.http.HttpRequest;
+
+/**
+ * Benchmark fake of the request interceptor hook of cordova-plugin-advanced-http with CriticalBlue modifications
+ */
+public class CordovaHttpPlugin {
+
+    // Interceptor called before a request is sent
+    public interface IHttpRequestInterceptor {
+        void accept(HttpRequest request);
+    }
+
+    public static void addRequestInterceptor(IHttpRequestInterceptor interceptor) {
+    }
+
+}
@@ -0,0 +1,100 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        DomainLookupBenchmark.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the lookup of a request URL's policy among a number of protected domains, a quarter of them wildcard
+ * domains, half of them with path rules. The protected domains are held in static state, so each parameter
+ * combination must run in a fresh fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DomainLookupBenchmark {
+
+    // Number of protected domains
+    @Param({"10", "100", "1000"})
+    public int domainCount;
+
+    // URL of a request to an exact protected domain
+    private URL exactURL;
+
+    // URL of a request to a subdomain of a wildcard protected domain
+    private URL wildcardURL;
+
+    // URL of a request to a path excluded from protection
+    private URL excludedPathURL;
+
+    // URL of a request to an unprotected domain
+    private URL unprotectedURL;
+
+    @Setup
+    public void setup() throws MalformedURLException {
+        for (int i = 0; i < domainCount; i += 1) {
+            String host = ((i % 4 == 0) ? "*." : "api.") + "service" + i + ".example.com";
+            if (i % 2 == 0) {
+                CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://" + host), i % 3 == 0);
+            } else {
+                CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://" + host), i % 3 == 0,
+                    Arrays.asList("/v1", "/v2"), Arrays.asList("/v1/public"));
+            }
+        }
+        exactURL = new URL("https://api.service" + (domainCount - 1) + ".example.com/v1/users");
+        wildcardURL = new URL("https://eu.api.service" + (domainCount / 2 / 4 * 4) + ".example.com/v1/users");
+        excludedPathURL = new URL("https://api.service" + (domainCount - 1) + ".example.com/v1/public/status");
+        unprotectedURL = new URL("https://www.example.org/index.html");
+    }
+
+    @Benchmark
+    public CordovaApproovHttpDomainPolicy exactDomain() {
+        return CordovaApproovHttpUtil.lookupPolicy(exactURL);
+    }
+
+    @Benchmark
+    public CordovaApproovHttpDomainPolicy wildcardDomain() {
+        return CordovaApproovHttpUtil.lookupPolicy(wildcardURL);
+    }
+
+    @Benchmark
+    public CordovaApproovHttpDomainPolicy excludedPath() {
+        return CordovaApproovHttpUtil.lookupPolicy(excludedPathURL);
+    }
+
+    @Benchmark
+    public CordovaApproovHttpDomainPolicy unprotectedDomain() {
+        return CordovaApproovHttpUtil.lookupPolicy(unprotectedURL);
+    }
+
+}
@@ -0,0 +1,113 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        InterceptorBenchmark.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+import com.github.kevinsawicki.http.HttpRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of the request interceptor for requests to a domain with a given protection policy, at 1 to
+ * 64 concurrent threads. Token fetches from the fake Approov SDK take a simulated latency and fail at a simulated
+ * rate. Each invocation includes the creation of the request, which the requestOnly benchmark measures on its own.
+ * The protected domains are held in static state, so each parameter combination must run in a fresh fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterceptorBenchmark {
+
+    // Protection policy of the requested domain
+    @Param({"UNPROTECTED", "TOKEN_ONLY", "MITM_PROTECTED"})
+    public CordovaApproovHttpDomainPolicy policy;
+
+    // Simulated latency of a token fetch from the Approov SDK
+    @Param({"1000"})
+    public long fetchLatencyMicros;
+
+    // Simulated rate of failed token fetches from the Approov SDK
+    @Param({"0.0", "0.5"})
+    public double fetchFailureRate;
+
+    // URL of the requests
+    private URL url;
+
+    @Setup
+    public void setup() throws MalformedURLException {
+        ApproovAttestation.setLatencyMicros(fetchLatencyMicros);
+        ApproovAttestation.setFailureRate(fetchFailureRate);
+        CordovaApproovHttpUtil.setApproovReady();
+        if (policy.isProtected()) {
+            CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://api.example.com"),
+                policy.isMITMProtected());
+        }
+        url = new URL("https://api.example.com/v1/users");
+    }
+
+    @Benchmark
+    public HttpRequest requestOnly() {
+        return HttpRequest.get(url);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public HttpRequest intercept1Thread() {
+        return intercept();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public HttpRequest intercept4Threads() {
+        return intercept();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public HttpRequest intercept16Threads() {
+        return intercept();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public HttpRequest intercept64Threads() {
+        return intercept();
+    }
+
+    private HttpRequest intercept() {
+        HttpRequest request = HttpRequest.get(url);
+        CordovaApproovHttpUtil.approovProtect.accept(request);
+        return request;
+    }
+
+}
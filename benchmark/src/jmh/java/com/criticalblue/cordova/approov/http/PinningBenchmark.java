@@ -0,0 +1,116 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        PinningBenchmark.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSession;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the dynamic pin check of the hostname verifier against generated X.509 certificates. The pinned
+ * certificate is the one the fake Approov SDK provides for the host; the session presents either the same
+ * certificate or one with a different key, in which case each check invalidates the pin and refetches it. Checks
+ * either resume the same TLS session, whose verdict is cached after the first check, or each use a new session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PinningBenchmark {
+
+    // Host connected to
+    private static final String HOST = "api.example.com";
+
+    // Whether the certificate presented matches the pinned certificate
+    @Param({"true", "false"})
+    public boolean isMatching;
+
+    // Whether each check resumes the same TLS session
+    @Param({"true", "false"})
+    public boolean isSessionResumed;
+
+    // Certificate chain presented by the host
+    private Certificate[] peerCertificates;
+
+    // Id of the next new TLS session
+    private final AtomicLong nextSessionId = new AtomicLong();
+
+    // Verifier under test, delegating to a verifier accepting all hosts
+    private CordovaApproovHttpPinningVerifier verifier;
+
+    // Session presenting the certificate chain of the host
+    private SSLSession session;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        X509Certificate pinnedCert = TestCertificates.generate(HOST);
+        X509Certificate presentedCert = isMatching ? pinnedCert : TestCertificates.generate(HOST);
+        ApproovAttestation.setLatencyMicros(0);
+        ApproovAttestation.setFailureRate(0.0);
+        ApproovAttestation.setServerCert(HOST, pinnedCert.getEncoded());
+        verifier = new CordovaApproovHttpPinningVerifier(new HostnameVerifier() {
+            @Override
+            public boolean verify(String hostname, SSLSession session) {
+                return true;
+            }
+        });
+        peerCertificates = new Certificate[] { presentedCert };
+        session = new FakeSSLSession(peerCertificates, new byte[32]);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return verifier.verify(HOST, nextSession());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean verify4Threads() {
+        return verifier.verify(HOST, nextSession());
+    }
+
+    // Get the session for the next check
+    private SSLSession nextSession() {
+        if (isSessionResumed) {
+            return session;
+        }
+        return new FakeSSLSession(peerCertificates,
+            ByteBuffer.allocate(32).putLong(nextSessionId.incrementAndGet()).array());
+    }
+
+}
@@ -0,0 +1,43 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        TestCertificates.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.security.cert.X509Certificate;
+
+import okhttp3.tls.HeldCertificate;
+
+/**
+ * Generator of self-signed X.509 certificates for benchmarking certificate pinning
+ */
+final class TestCertificates {
+
+    // Validity of the generated certificates
+    private static final long VALIDITY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private TestCertificates() {
+    }
+
+    // Generate a self-signed certificate for a host with a new P-256 key pair
+    static X509Certificate generate(String host) {
+        long now = System.currentTimeMillis();
+        return new HeldCertificate.Builder()
+            .commonName(host)
+            .validityInterval(now - VALIDITY_MILLIS, now + VALIDITY_MILLIS)
+            .ecdsa256()
+            .build()
+            .certificate();
+    }
+
+}
@@ -0,0 +1,146 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        TransportBenchmark.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+import com.github.kevinsawicki.http.HttpRequest;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of complete MITM protected requests to a local MockWebServer presenting a self-signed
+ * certificate, with each transport. The certificate is the one the fake Approov SDK provides for the server's host.
+ * Setup fails unless the server receives the Approov token. The rejection of requests failing the pin check is
+ * covered by CordovaApproovHttpOkHttpTransportTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+
+    // Response body indicating whether the request carried an Approov token
+    private static final String TOKEN_RECEIVED = "token";
+    private static final String TOKEN_MISSING = "no token";
+
+    // Transport for Approov protected requests
+    @Param({"urlconnection", "okhttp"})
+    public String transport;
+
+    // Server receiving the requests
+    private MockWebServer server;
+
+    // URL of the requests
+    private URL url;
+
+    @Setup
+    public void setup() throws IOException, GeneralSecurityException {
+        // The server is reached as "localhost", whose certificate is provided by the fake Approov SDK
+        String hostname = "localhost";
+        HeldCertificate serverCertificate = new HeldCertificate.Builder()
+            .commonName(hostname)
+            .addSubjectAlternativeName(hostname)
+            .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+            .heldCertificate(serverCertificate)
+            .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+            .addTrustedCertificate(serverCertificate.certificate())
+            .build();
+
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                boolean hasToken = request.getHeader("Approov-Token") != null
+                    && !request.getHeader("Approov-Token").isEmpty();
+                return new MockResponse().setBody(hasToken ? TOKEN_RECEIVED : TOKEN_MISSING);
+            }
+        });
+        server.start();
+
+        // Trust the self-signed certificate with both transports
+        HttpsURLConnection.setDefaultSSLSocketFactory(clientCertificates.sslSocketFactory());
+        CordovaApproovHttpOkHttpTransport.setBaseClient(new OkHttpClient.Builder()
+            .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager())
+            .build());
+
+        ApproovAttestation.setLatencyMicros(0);
+        ApproovAttestation.setFailureRate(0.0);
+        ApproovAttestation.setServerCert(hostname, serverCertificate.certificate().getEncoded());
+        CordovaApproovHttpUtil.setApproovReady();
+        CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://" + hostname), true);
+        CordovaApproovHttpUtil.setTransport(transport);
+        url = new URL("https://" + hostname + ":" + server.getPort() + "/api");
+
+        if (!TOKEN_RECEIVED.equals(request())) {
+            throw new IllegalStateException("Approov token not received by the server");
+        }
+    }
+
+    // Send a protected request and get its response body
+    private static String request(URL requestURL) {
+        HttpRequest request = HttpRequest.get(requestURL);
+        CordovaApproovHttpUtil.approovProtect.accept(request);
+        return request.body();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public String request() {
+        return request(url);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String request16Threads() {
+        return request();
+    }
+
+}
@@ -0,0 +1,110 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpDomainTrieTest.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the specificity rules of the reversed-label domain trie
+ */
+public class CordovaApproovHttpDomainTrieTest {
+
+    // Build a trie mapping each pattern to itself
+    private static CordovaApproovHttpDomainTrie<String> trie(String... patterns) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (String pattern : patterns) {
+            map.put(pattern, pattern);
+        }
+        return CordovaApproovHttpDomainTrie.build(map);
+    }
+
+    @Test
+    public void exactPatternMatchesOnlyItsHost() {
+        CordovaApproovHttpDomainTrie<String> trie = trie("api.example.com");
+        assertEquals("api.example.com", trie.lookup("api.example.com"));
+        assertNull(trie.lookup("example.com"));
+        assertNull(trie.lookup("v1.api.example.com"));
+        assertNull(trie.lookup("xapi.example.com"));
+        assertNull(trie.lookup("api.example.org"));
+    }
+
+    @Test
+    public void wildcardMatchesSubdomainsAtAnyDepthButNotItsDomain() {
+        CordovaApproovHttpDomainTrie<String> trie = trie("*.example.com");
+        assertEquals("*.example.com", trie.lookup("api.example.com"));
+        assertEquals("*.example.com", trie.lookup("v1.api.example.com"));
+        assertNull(trie.lookup("example.com"));
+        assertNull(trie.lookup("badexample.com"));
+    }
+
+    @Test
+    public void exactPatternWinsOverWildcard() {
+        CordovaApproovHttpDomainTrie<String> trie = trie("*.example.com", "api.example.com", "example.com");
+        assertEquals("api.example.com", trie.lookup("api.example.com"));
+        assertEquals("example.com", trie.lookup("example.com"));
+        assertEquals("*.example.com", trie.lookup("www.example.com"));
+        assertEquals("*.example.com", trie.lookup("v1.api.example.com"));
+    }
+
+    @Test
+    public void mostSpecificWildcardWins() {
+        CordovaApproovHttpDomainTrie<String> trie = trie("*.example.com", "*.api.example.com");
+        assertEquals("*.api.example.com", trie.lookup("v1.api.example.com"));
+        assertEquals("*.api.example.com", trie.lookup("a.v1.api.example.com"));
+        assertEquals("*.example.com", trie.lookup("api.example.com"));
+        assertEquals("*.example.com", trie.lookup("www.example.com"));
+    }
+
+    @Test
+    public void lookupWildcardFindsTheWildcardCoveringAllSubdomains() {
+        CordovaApproovHttpDomainTrie<String> trie = trie("*.example.com", "*.api.example.com", "www.example.com");
+        assertEquals("*.example.com", trie.lookupWildcard("example.com"));
+        assertEquals("*.api.example.com", trie.lookupWildcard("api.example.com"));
+        assertEquals("*.api.example.com", trie.lookupWildcard("v1.api.example.com"));
+        assertEquals("*.example.com", trie.lookupWildcard("www.example.com"));
+        assertNull(trie.lookupWildcard("com"));
+        assertNull(trie.lookupWildcard("example.org"));
+    }
+
+    @Test
+    public void emptyTrieMatchesNothing() {
+        CordovaApproovHttpDomainTrie<String> trie = trie();
+        assertNull(trie.lookup("example.com"));
+        assertNull(trie.lookupWildcard("example.com"));
+    }
+
+    @Test
+    public void wildcardIsOnlyValidAsCompleteLeftmostLabel() {
+        assertTrue(CordovaApproovHttpDomainTrie.isValidPattern("example.com"));
+        assertTrue(CordovaApproovHttpDomainTrie.isValidPattern("*.example.com"));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern("*"));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern("*."));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern("*example.com"));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern("api.*.example.com"));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern("*.*.example.com"));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern(".example.com"));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern("example.com."));
+        assertFalse(CordovaApproovHttpDomainTrie.isValidPattern(""));
+    }
+
+}
@@ -0,0 +1,154 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpOkHttpTransportTest.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+import com.github.kevinsawicki.http.HttpRequest;
+
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the OkHttp transport's dynamic pin check against a local MockWebServer presenting a self-signed
+ * certificate. The server is reached under several hostnames: one for which the fake Approov SDK provides the
+ * server's certificate, one for which it provides no certificate and one for which it provides a different
+ * certificate. The JDK's HttpsURLConnection only consults a hostname verifier if its own hostname check fails, so the
+ * dynamic pinning of the default transport can only be checked on Android.
+ */
+public class CordovaApproovHttpOkHttpTransportTest {
+
+    // Response body indicating whether the request carried an Approov token
+    private static final String TOKEN_RECEIVED = "token";
+    private static final String TOKEN_MISSING = "no token";
+
+    // Hostnames of the server, resolved to the loopback interface
+    private static final String PINNED_HOSTNAME = "pinned.transport.test";
+    private static final String UNPINNED_HOSTNAME = "unpinned.transport.test";
+    private static final String MISMATCHED_HOSTNAME = "mismatched.transport.test";
+
+    // Server receiving the requests
+    private static MockWebServer server;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        HeldCertificate serverCertificate = new HeldCertificate.Builder()
+            .commonName(PINNED_HOSTNAME)
+            .addSubjectAlternativeName(PINNED_HOSTNAME)
+            .addSubjectAlternativeName(UNPINNED_HOSTNAME)
+            .addSubjectAlternativeName(MISMATCHED_HOSTNAME)
+            .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+            .heldCertificate(serverCertificate)
+            .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+            .addTrustedCertificate(serverCertificate.certificate())
+            .build();
+
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                boolean hasToken = request.getHeader("Approov-Token") != null
+                    && !request.getHeader("Approov-Token").isEmpty();
+                return new MockResponse().setBody(hasToken ? TOKEN_RECEIVED : TOKEN_MISSING);
+            }
+        });
+        server.start();
+
+        // Trust the self-signed certificate and resolve all hostnames to the server
+        CordovaApproovHttpOkHttpTransport.setBaseClient(new OkHttpClient.Builder()
+            .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager())
+            .dns(new Dns() {
+                @Override
+                public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                    return Dns.SYSTEM.lookup(server.getHostName());
+                }
+            })
+            .build());
+
+        ApproovAttestation.setLatencyMicros(0);
+        ApproovAttestation.setFailureRate(0.0);
+        ApproovAttestation.setServerCert(PINNED_HOSTNAME, serverCertificate.certificate().getEncoded());
+        HeldCertificate otherCertificate = new HeldCertificate.Builder()
+            .commonName(MISMATCHED_HOSTNAME)
+            .build();
+        ApproovAttestation.setServerCert(MISMATCHED_HOSTNAME, otherCertificate.certificate().getEncoded());
+        CordovaApproovHttpUtil.setApproovReady();
+        CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://" + PINNED_HOSTNAME), true);
+        CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://" + UNPINNED_HOSTNAME), true);
+        CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://" + MISMATCHED_HOSTNAME), true);
+        CordovaApproovHttpUtil.setTransport("okhttp");
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        CordovaApproovHttpUtil.setTransport("urlconnection");
+        server.shutdown();
+    }
+
+    // Send a protected request and get its response body
+    private static String request(String hostname) throws IOException {
+        HttpRequest request = HttpRequest.get(new URL("https://" + hostname + ":" + server.getPort() + "/api"));
+        CordovaApproovHttpUtil.approovProtect.accept(request);
+        return request.body();
+    }
+
+    // Check that a request is rejected before it reaches the server
+    private static void assertRejected(String hostname) throws IOException {
+        int requestCount = server.getRequestCount();
+        try {
+            request(hostname);
+            fail("Request to " + hostname + " was not rejected");
+        } catch (HttpRequest.HttpRequestException e) {
+            assertEquals("Request to " + hostname + " reached the server", requestCount, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void pinnedRequestCarriesToken() throws IOException {
+        assertEquals(TOKEN_RECEIVED, request(PINNED_HOSTNAME));
+    }
+
+    @Test
+    public void requestWithoutPinIsRejected() throws IOException {
+        assertRejected(UNPINNED_HOSTNAME);
+    }
+
+    @Test
+    public void requestWithMismatchingPinIsRejected() throws IOException {
+        assertRejected(MISMATCHED_HOSTNAME);
+    }
+
+}
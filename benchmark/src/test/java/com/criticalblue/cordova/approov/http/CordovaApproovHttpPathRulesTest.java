@@ -0,0 +1,170 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpPathRulesTest.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the path-prefix rules of protected domains, including the merging of the rules of overlapping
+ * protected domains
+ */
+public class CordovaApproovHttpPathRulesTest {
+
+    private static final List<String> NONE = Collections.<String>emptyList();
+
+    private static CordovaApproovHttpPathRules rules(List<String> includes, List<String> excludes) {
+        return CordovaApproovHttpPathRules.create(includes, excludes);
+    }
+
+    @Test
+    public void noPrefixesProtectAllPaths() {
+        CordovaApproovHttpPathRules rules = rules(NONE, NONE);
+        assertSame(CordovaApproovHttpPathRules.ALL_PATHS, rules);
+        assertTrue(rules.isIncluded("/"));
+        assertTrue(rules.isIncluded("/anything/at/all"));
+        assertTrue(rules.isIncluded(null));
+    }
+
+    @Test
+    public void prefixesMatchOnSegmentBoundaries() {
+        CordovaApproovHttpPathRules rules = rules(Arrays.asList("/api"), NONE);
+        assertTrue(rules.isIncluded("/api"));
+        assertTrue(rules.isIncluded("/api/"));
+        assertTrue(rules.isIncluded("/api/v1/users"));
+        assertFalse(rules.isIncluded("/apis"));
+        assertFalse(rules.isIncluded("/ap"));
+        assertFalse(rules.isIncluded("/"));
+        assertFalse(rules.isIncluded("/static/api"));
+    }
+
+    @Test
+    public void excludesAloneLeaveOtherPathsProtected() {
+        CordovaApproovHttpPathRules rules = rules(NONE, Arrays.asList("/health"));
+        assertFalse(rules.isAllPaths());
+        assertFalse(rules.isIncluded("/health"));
+        assertFalse(rules.isIncluded("/health/live"));
+        assertTrue(rules.isIncluded("/healthz"));
+        assertTrue(rules.isIncluded("/api"));
+    }
+
+    @Test
+    public void longestMatchingPrefixDecides() {
+        CordovaApproovHttpPathRules rules = rules(Arrays.asList("/api", "/api/public/secure"),
+            Arrays.asList("/api/public"));
+        assertTrue(rules.isIncluded("/api/v1"));
+        assertFalse(rules.isIncluded("/api/public"));
+        assertFalse(rules.isIncluded("/api/public/docs"));
+        assertTrue(rules.isIncluded("/api/public/secure"));
+        assertTrue(rules.isIncluded("/api/public/secure/login"));
+    }
+
+    @Test
+    public void includeWinsOverIdenticalExclude() {
+        CordovaApproovHttpPathRules rules = rules(Arrays.asList("/api"), Arrays.asList("/api"));
+        assertTrue(rules.isIncluded("/api"));
+        assertTrue(rules.isIncluded("/api/v1"));
+    }
+
+    @Test
+    public void prefixesAreNormalized() {
+        CordovaApproovHttpPathRules rules = rules(Arrays.asList("/api//v1/", "//"), Arrays.asList("/api/v1/"));
+        assertEquals(Arrays.asList("/", "/api/v1"), Arrays.asList(rules.getIncludePrefixes().toArray()));
+        assertEquals(Collections.singleton("/api/v1"), rules.getExcludePrefixes());
+        assertTrue(rules.isIncluded("/api//v1/users"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void relativePrefixIsRejected() {
+        rules(Arrays.asList("api"), NONE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullPrefixIsRejected() {
+        rules(NONE, Arrays.asList((String) null));
+    }
+
+    @Test
+    public void mergeWithAllPathsProtectsAllPaths() {
+        CordovaApproovHttpPathRules rules = rules(Arrays.asList("/api"), Arrays.asList("/api/public"));
+        assertSame(CordovaApproovHttpPathRules.ALL_PATHS, rules.merge(CordovaApproovHttpPathRules.ALL_PATHS));
+        assertSame(CordovaApproovHttpPathRules.ALL_PATHS, CordovaApproovHttpPathRules.ALL_PATHS.merge(rules));
+    }
+
+    @Test
+    public void mergeUnitesIncludes() {
+        CordovaApproovHttpPathRules merged = rules(Arrays.asList("/api"), NONE)
+            .merge(rules(Arrays.asList("/auth"), NONE));
+        assertTrue(merged.isIncluded("/api/v1"));
+        assertTrue(merged.isIncluded("/auth/login"));
+        assertFalse(merged.isIncluded("/static"));
+    }
+
+    @Test
+    public void mergeKeepsOnlyCommonExcludes() {
+        CordovaApproovHttpPathRules merged = rules(NONE, Arrays.asList("/health", "/static"))
+            .merge(rules(NONE, Arrays.asList("/static", "/docs")));
+        assertEquals(Collections.singleton("/static"), merged.getExcludePrefixes());
+        assertTrue(merged.isIncluded("/health"));
+        assertTrue(merged.isIncluded("/docs"));
+        assertFalse(merged.isIncluded("/static/app.js"));
+    }
+
+    @Test
+    public void mergeWithOnlyExcludesDropsIncludes() {
+        // Rules without includes protect all paths but their excludes, which is never narrower than the includes
+        CordovaApproovHttpPathRules merged = rules(Arrays.asList("/api"), Arrays.asList("/api/public"))
+            .merge(rules(NONE, Arrays.asList("/api/public", "/static")));
+        assertTrue(merged.getIncludePrefixes().isEmpty());
+        assertEquals(Collections.singleton("/api/public"), merged.getExcludePrefixes());
+        assertTrue(merged.isIncluded("/static"));
+        assertTrue(merged.isIncluded("/other"));
+        assertFalse(merged.isIncluded("/api/public/docs"));
+    }
+
+    @Test
+    public void mergedExcludesNeverRemoveIncludedPaths() {
+        CordovaApproovHttpPathRules merged = rules(Arrays.asList("/api", "/docs"), Arrays.asList("/docs"))
+            .merge(rules(Arrays.asList("/docs/private"), Arrays.asList("/docs")));
+        assertFalse(merged.getExcludePrefixes().contains("/docs"));
+        assertTrue(merged.isIncluded("/docs"));
+        assertTrue(merged.isIncluded("/docs/private"));
+        assertTrue(merged.isIncluded("/api"));
+    }
+
+    @Test
+    public void mergeNeverNarrowsProtection() {
+        CordovaApproovHttpPathRules first = rules(Arrays.asList("/api", "/auth"), Arrays.asList("/api/public"));
+        CordovaApproovHttpPathRules second = rules(Arrays.asList("/api/public/secure", "/pay"),
+            Arrays.asList("/pay/callback"));
+        CordovaApproovHttpPathRules merged = first.merge(second);
+        String[] paths = { "/", "/api", "/api/v1", "/api/public", "/api/public/secure/x", "/auth", "/pay",
+            "/pay/callback", "/static" };
+        for (String path : paths) {
+            if (first.isIncluded(path) || second.isIncluded(path)) {
+                assertTrue(path, merged.isIncluded(path));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpPinStoreTest.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the overlap window during which a replaced or invalidated pin remains accepted
+ */
+public class CordovaApproovHttpPinStoreTest {
+
+    // Overlap window short enough to wait for its end
+    private static final long SHORT_OVERLAP_MILLIS = 200;
+
+    // Counter making the hostname of each test unique, as the pin store is shared by all tests
+    private static final AtomicInteger hostCounter = new AtomicInteger();
+
+    @After
+    public void restoreOverlapWindow() {
+        CordovaApproovHttpPinStore.setOverlapMillis(CordovaApproovHttpPinStore.DEFAULT_OVERLAP_MILLIS);
+    }
+
+    private static String newHost() {
+        return "pin" + hostCounter.incrementAndGet() + ".example.com";
+    }
+
+    // Let the host present a new certificate, have the fake SDK cache it through a token fetch and return the
+    // certificate's public key digest
+    private static byte[] serveNewCert(String host) throws Exception {
+        X509Certificate cert = TestCertificates.generate(host);
+        ApproovAttestation.setServerCert(host, cert.getEncoded());
+        ApproovAttestation.shared().fetchApproovTokenAndWait("https://" + host + "/");
+        return CordovaApproovHttpPinStore.spkiDigest(cert);
+    }
+
+    @Test
+    public void pinAcceptsOnlyItsCertificateInitially() throws Exception {
+        String host = newHost();
+        byte[] first = serveNewCert(host);
+        CordovaApproovHttpPinStore.PinnedCert pin = CordovaApproovHttpPinStore.getPin(host);
+        assertTrue(pin.accepts(first));
+        assertEquals(1, pin.acceptedDigests.size());
+        assertEquals(0, pin.previousExpiresAtMillis);
+    }
+
+    @Test
+    public void replacedPinIsAcceptedUntilOverlapWindowEnds() throws Exception {
+        CordovaApproovHttpPinStore.setOverlapMillis(SHORT_OVERLAP_MILLIS);
+        String host = newHost();
+        byte[] first = serveNewCert(host);
+        CordovaApproovHttpPinStore.getPin(host);
+
+        byte[] second = serveNewCert(host);
+        long replacedAtMillis = System.currentTimeMillis();
+        CordovaApproovHttpPinStore.PinnedCert pin = CordovaApproovHttpPinStore.getPin(host);
+        assertTrue(pin.accepts(first));
+        assertTrue(pin.accepts(second));
+        assertTrue(pin.previousExpiresAtMillis >= replacedAtMillis + SHORT_OVERLAP_MILLIS);
+
+        Thread.sleep(SHORT_OVERLAP_MILLIS + 50);
+        int version = CordovaApproovHttpPinStore.getVersion();
+        pin = CordovaApproovHttpPinStore.getPin(host);
+        assertFalse(pin.accepts(first));
+        assertTrue(pin.accepts(second));
+        assertEquals(0, pin.previousExpiresAtMillis);
+        assertNotEquals(version, CordovaApproovHttpPinStore.getVersion());
+    }
+
+    @Test
+    public void onlyLatestReplacedPinIsAccepted() throws Exception {
+        String host = newHost();
+        byte[] first = serveNewCert(host);
+        CordovaApproovHttpPinStore.getPin(host);
+        byte[] second = serveNewCert(host);
+        CordovaApproovHttpPinStore.getPin(host);
+        byte[] third = serveNewCert(host);
+        CordovaApproovHttpPinStore.PinnedCert pin = CordovaApproovHttpPinStore.getPin(host);
+        assertFalse(pin.accepts(first));
+        assertTrue(pin.accepts(second));
+        assertTrue(pin.accepts(third));
+    }
+
+    @Test
+    public void invalidatedPinIsAcceptedAlongsideItsReplacement() throws Exception {
+        String host = newHost();
+        byte[] first = serveNewCert(host);
+        CordovaApproovHttpPinStore.getPin(host);
+
+        CordovaApproovHttpPinStore.invalidate(host);
+        byte[] second = serveNewCert(host);
+        CordovaApproovHttpPinStore.PinnedCert pin = CordovaApproovHttpPinStore.getPin(host);
+        assertTrue(pin.accepts(first));
+        assertTrue(pin.accepts(second));
+    }
+
+    @Test
+    public void invalidatedPinIsNotAcceptedAfterOverlapWindowEnds() throws Exception {
+        CordovaApproovHttpPinStore.setOverlapMillis(SHORT_OVERLAP_MILLIS);
+        String host = newHost();
+        byte[] first = serveNewCert(host);
+        CordovaApproovHttpPinStore.getPin(host);
+
+        CordovaApproovHttpPinStore.invalidate(host);
+        Thread.sleep(SHORT_OVERLAP_MILLIS + 50);
+        byte[] second = serveNewCert(host);
+        CordovaApproovHttpPinStore.PinnedCert pin = CordovaApproovHttpPinStore.getPin(host);
+        assertFalse(pin.accepts(first));
+        assertTrue(pin.accepts(second));
+        assertEquals(0, pin.previousExpiresAtMillis);
+    }
+
+    @Test
+    public void zeroOverlapWindowAcceptsOnlyCurrentPin() throws Exception {
+        CordovaApproovHttpPinStore.setOverlapMillis(0);
+        String host = newHost();
+        byte[] first = serveNewCert(host);
+        CordovaApproovHttpPinStore.getPin(host);
+        byte[] second = serveNewCert(host);
+        CordovaApproovHttpPinStore.PinnedCert pin = CordovaApproovHttpPinStore.getPin(host);
+        assertFalse(pin.accepts(first));
+        assertTrue(pin.accepts(second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeOverlapWindowIsRejected() {
+        CordovaApproovHttpPinStore.setOverlapMillis(-1);
+    }
+
+}
@@ -0,0 +1,286 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpSnapshotTest.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import android.util.Base64;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of saving and restoring the snapshot of protected domains and pins, and of discarding corrupt snapshots. The
+ * plugin's state cannot be reset between tests, so each test uses its own domains and the snapshot files are written
+ * and read with a mirror of the file format.
+ */
+public class CordovaApproovHttpSnapshotTest {
+
+    // File format identifier ("APHS") and version
+    private static final int MAGIC = 0x41504853;
+    private static final int VERSION = 2;
+
+    // App version the snapshots are tagged with
+    private static final long APP_VERSION = 42;
+
+    // Counter making the domains of each test unique, as the protected domains and pins are shared by all tests
+    private static final AtomicInteger domainCounter = new AtomicInteger();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private String domain;
+    private String host;
+    private byte[] backupPin;
+    private byte[] certBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), CordovaApproovHttpSnapshot.FILE_NAME);
+        int id = domainCounter.incrementAndGet();
+        domain = "*.snapshot" + id + ".example.com";
+        host = "api.snapshot" + id + ".example.com";
+        backupPin = new byte[32];
+        Arrays.fill(backupPin, (byte) id);
+        certBytes = TestCertificates.generate(host).getEncoded();
+    }
+
+    // Serialize a payload holding a single protected domain and a single pin, as written by the snapshot
+    private byte[] payload(String domain, byte[] backupPin) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeUTF(domain);
+        out.writeBoolean(true);
+        out.writeInt(1);
+        out.writeUTF("/api");
+        out.writeInt(1);
+        out.writeUTF("/api/public");
+        out.writeInt(1);
+        out.writeInt(backupPin.length);
+        out.write(backupPin);
+        out.writeInt(1);
+        out.writeUTF(host);
+        out.writeInt(certBytes.length);
+        out.write(certBytes);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Write a snapshot file with a valid header and checksum
+    private void writeSnapshot(long appVersion, byte[] payload) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(appVersion);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(checksum.getValue());
+        out.flush();
+        Files.write(file.toPath(), bytes.toByteArray());
+    }
+
+    // Read the payload of a snapshot file, checking its header and checksum
+    private byte[] readSnapshot(long appVersion) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        assertEquals(MAGIC, in.readInt());
+        assertEquals(VERSION, in.readInt());
+        assertEquals(appVersion, in.readLong());
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        assertEquals(checksum.getValue(), in.readLong());
+        assertEquals(0, in.available());
+        return payload;
+    }
+
+    // Read a length-prefixed list of strings
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < count; i += 1) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    // Read a length-prefixed byte array
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // Check that the snapshot file is rejected and deleted, and that nothing it holds has been restored
+    private void assertRejected() {
+        assertFalse(CordovaApproovHttpSnapshot.load(file, APP_VERSION));
+        assertFalse(file.exists());
+        assertFalse(CordovaApproovHttpUtil.getProtectedDomains().containsKey(domain));
+        assertFalse(CordovaApproovHttpPinStore.getPins().containsKey(host));
+    }
+
+    @Test
+    public void savedSnapshotHoldsProtectedDomainsAndPins() throws Exception {
+        CordovaApproovHttpUtil.addApproovProtectedDomain(new URL("https://" + domain), true,
+            Arrays.asList("/api"), Arrays.asList("/api/public"),
+            Arrays.asList(Base64.encodeToString(backupPin, Base64.NO_WRAP)));
+        ApproovAttestation.setServerCert(host, certBytes);
+        ApproovAttestation.shared().fetchApproovTokenAndWait("https://" + host + "/");
+        assertNotNull(CordovaApproovHttpPinStore.getPin(host));
+
+        CordovaApproovHttpSnapshot.save(file, APP_VERSION);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readSnapshot(APP_VERSION)));
+        boolean isDomainSaved = false;
+        int domainCount = in.readInt();
+        for (int i = 0; i < domainCount; i += 1) {
+            String savedDomain = in.readUTF();
+            boolean isMITMProtected = in.readBoolean();
+            List<String> includePaths = readStrings(in);
+            List<String> excludePaths = readStrings(in);
+            List<ByteBuffer> backupPins = new ArrayList<ByteBuffer>();
+            int backupPinCount = in.readInt();
+            for (int j = 0; j < backupPinCount; j += 1) {
+                backupPins.add(ByteBuffer.wrap(readBytes(in)));
+            }
+            if (savedDomain.equals(domain)) {
+                isDomainSaved = true;
+                assertTrue(isMITMProtected);
+                assertEquals(Collections.singletonList("/api"), includePaths);
+                assertEquals(Collections.singletonList("/api/public"), excludePaths);
+                assertEquals(Collections.singletonList(ByteBuffer.wrap(backupPin)), backupPins);
+            }
+        }
+        assertTrue(isDomainSaved);
+        Map<String, byte[]> pins = new HashMap<String, byte[]>();
+        int pinCount = in.readInt();
+        for (int i = 0; i < pinCount; i += 1) {
+            pins.put(in.readUTF(), readBytes(in));
+        }
+        assertArrayEquals(certBytes, pins.get(host));
+        assertEquals(0, in.available());
+
+        // The saved snapshot is loaded again
+        assertTrue(CordovaApproovHttpSnapshot.load(file, APP_VERSION));
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void loadedSnapshotRestoresProtectedDomainsAndPins() throws Exception {
+        writeSnapshot(APP_VERSION, payload(domain, backupPin));
+        assertTrue(CordovaApproovHttpSnapshot.load(file, APP_VERSION));
+        assertTrue(file.exists());
+
+        CordovaApproovHttpProtectedDomain protectedDomain = CordovaApproovHttpUtil.getProtectedDomains().get(domain);
+        assertNotNull(protectedDomain);
+        assertTrue(protectedDomain.policy.isMITMProtected());
+        assertEquals(Collections.singleton("/api"), protectedDomain.pathRules.getIncludePrefixes());
+        assertEquals(Collections.singleton("/api/public"), protectedDomain.pathRules.getExcludePrefixes());
+        Set<ByteBuffer> backupPins = new HashSet<ByteBuffer>(Collections.singleton(ByteBuffer.wrap(backupPin)));
+        assertEquals(backupPins, protectedDomain.backupPins);
+
+        CordovaApproovHttpPinStore.PinnedCert pin = CordovaApproovHttpPinStore.getPins().get(host);
+        assertNotNull(pin);
+        assertArrayEquals(certBytes, pin.certBytes);
+        assertArrayEquals(CordovaApproovHttpPinStore.spkiDigest(certBytes), pin.spkiDigest);
+    }
+
+    @Test
+    public void missingSnapshotIsNotLoaded() {
+        assertFalse(CordovaApproovHttpSnapshot.load(file, APP_VERSION));
+    }
+
+    @Test
+    public void snapshotOfAnotherAppVersionIsDeleted() throws Exception {
+        writeSnapshot(APP_VERSION + 1, payload(domain, backupPin));
+        assertRejected();
+    }
+
+    @Test
+    public void snapshotWithChecksumMismatchIsDeleted() throws Exception {
+        writeSnapshot(APP_VERSION, payload(domain, backupPin));
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(file.toPath(), bytes);
+        assertRejected();
+    }
+
+    @Test
+    public void truncatedSnapshotIsDeleted() throws Exception {
+        writeSnapshot(APP_VERSION, payload(domain, backupPin));
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        assertRejected();
+    }
+
+    @Test
+    public void snapshotWithUnknownFormatIsDeleted() throws Exception {
+        Files.write(file.toPath(), new byte[64]);
+        assertRejected();
+    }
+
+    @Test
+    public void snapshotWithInvalidDomainIsDeleted() throws Exception {
+        writeSnapshot(APP_VERSION, payload("api.*." + domain.substring(2), backupPin));
+        assertRejected();
+    }
+
+    @Test
+    public void snapshotWithInvalidBackupPinIsDeleted() throws Exception {
+        writeSnapshot(APP_VERSION, payload(domain, Arrays.copyOf(backupPin, 31)));
+        assertRejected();
+    }
+
+    @Test
+    public void snapshotWithTrailingDataIsDeleted() throws Exception {
+        byte[] payload = payload(domain, backupPin);
+        writeSnapshot(APP_VERSION, Arrays.copyOf(payload, payload.length + 1));
+        assertRejected();
+    }
+
+}
@@ -0,0 +1,183 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpCircuitBreaker.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Per-domain circuit breaker for Approov token fetches. After a number of consecutive failed fetches for a domain the
+ * circuit opens and token fetches for the domain fail immediately for a cool-down period, which doubles with each
+ * further opening up to a maximum. Once the cool-down has elapsed the circuit is half-open: a single probe fetch is let
+ * through, closing the circuit if it succeeds and reopening it if it fails.
+ */
+final class CordovaApproovHttpCircuitBreaker {
+
+    // Default number of consecutive failures after which the circuit opens
+    static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    // Default cool-down after the circuit first opens
+    static final long DEFAULT_COOLDOWN_MILLIS = 5000;
+
+    // Default maximum cool-down after repeated openings of the circuit
+    static final long DEFAULT_MAX_COOLDOWN_MILLIS = 300000;
+
+    // State of a circuit
+    enum State {
+        // Token fetches are performed
+        CLOSED,
+
+        // Token fetches fail immediately until the cool-down has elapsed
+        OPEN,
+
+        // The cool-down has elapsed, a single probe fetch is let through
+        HALF_OPEN
+    }
+
+    // Circuit for one domain. Transitions are synchronized on the circuit; openUntilMillis is volatile so that closed
+    // circuits can be checked without locking.
+    private static final class Circuit {
+        int consecutiveFailures;
+        int consecutiveOpenings;
+        boolean isProbeInFlight;
+        volatile long openUntilMillis;
+    }
+
+    // Map of domains to their circuits
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    // Number of consecutive failures after which the circuit opens
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    // Cool-down after the circuit first opens
+    private volatile long cooldownMillis = DEFAULT_COOLDOWN_MILLIS;
+
+    // Maximum cool-down after repeated openings of the circuit
+    private volatile long maxCooldownMillis = DEFAULT_MAX_COOLDOWN_MILLIS;
+
+    // Set the number of consecutive failures after which the circuit opens
+    void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Approov circuit breaker threshold must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    // Set the cool-down after the circuit first opens and the maximum cool-down after repeated openings
+    void setCooldownMillis(long cooldownMillis, long maxCooldownMillis) {
+        if (cooldownMillis < 0 || maxCooldownMillis < cooldownMillis) {
+            throw new IllegalArgumentException("Approov circuit breaker cool-down is invalid");
+        }
+        this.cooldownMillis = cooldownMillis;
+        this.maxCooldownMillis = maxCooldownMillis;
+    }
+
+    // Check whether a token fetch for a domain may be performed. If the circuit is half-open, only the first caller is
+    // allowed to probe and must report the result through recordSuccess() or recordFailure().
+    boolean allowRequest(String domain) {
+        Circuit circuit = circuits.get(domain);
+        if (circuit == null || circuit.openUntilMillis == 0) {
+            return true;
+        }
+        synchronized (circuit) {
+            if (circuit.openUntilMillis == 0) {
+                return true;
+            }
+            if (System.currentTimeMillis() < circuit.openUntilMillis || circuit.isProbeInFlight) {
+                return false;
+            }
+            circuit.isProbeInFlight = true;
+            return true;
+        }
+    }
+
+    // Record a successful token fetch for a domain, closing its circuit
+    void recordSuccess(String domain) {
+        Circuit circuit = circuits.get(domain);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            circuit.consecutiveFailures = 0;
+            circuit.consecutiveOpenings = 0;
+            circuit.isProbeInFlight = false;
+            circuit.openUntilMillis = 0;
+        }
+    }
+
+    // Record a failed token fetch for a domain, opening its circuit if the failure threshold is reached or the failed
+    // fetch was a probe
+    void recordFailure(String domain) {
+        Circuit circuit = circuits.get(domain);
+        if (circuit == null) {
+            Circuit newCircuit = new Circuit();
+            circuit = circuits.putIfAbsent(domain, newCircuit);
+            if (circuit == null) {
+                circuit = newCircuit;
+            }
+        }
+        synchronized (circuit) {
+            circuit.consecutiveFailures += 1;
+            if (circuit.isProbeInFlight || circuit.consecutiveFailures >= failureThreshold) {
+                // Double the cool-down with each consecutive opening, up to the maximum
+                long cooldown = cooldownMillis;
+                for (int i = 0; i < circuit.consecutiveOpenings && cooldown < maxCooldownMillis; i += 1) {
+                    cooldown *= 2;
+                }
+                circuit.consecutiveOpenings += 1;
+                circuit.isProbeInFlight = false;
+                circuit.openUntilMillis = System.currentTimeMillis() + Math.min(cooldown, maxCooldownMillis);
+            }
+        }
+    }
+
+    // Get the state of the circuit for a domain
+    State getState(String domain) {
+        Circuit circuit = circuits.get(domain);
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        long openUntilMillis = circuit.openUntilMillis;
+        if (openUntilMillis == 0) {
+            return State.CLOSED;
+        }
+        return (System.currentTimeMillis() < openUntilMillis) ? State.OPEN : State.HALF_OPEN;
+    }
+
+    // Get the states of all circuits as a JSON array of objects holding the domain (null for the generic token), the
+    // state, the number of consecutive failures and the time in milliseconds until a probe is let through
+    JSONArray getStates(String genericDomainKey) throws JSONException {
+        JSONArray states = new JSONArray();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Circuit> entry : circuits.entrySet()) {
+            Circuit circuit = entry.getValue();
+            JSONObject state = new JSONObject();
+            synchronized (circuit) {
+                state.put("domain", entry.getKey().equals(genericDomainKey) ? JSONObject.NULL : entry.getKey());
+                state.put("state", getState(entry.getKey()).name());
+                state.put("consecutiveFailures", circuit.consecutiveFailures);
+                state.put("retryAfterMillis", Math.max(0, circuit.openUntilMillis - now));
+            }
+            states.put(state);
+        }
+        return states;
+    }
+
+}
@@ -0,0 +1,46 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpDomainPolicy.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+/**
+ * Approov protection policy applying to a request URL
+ */
+public enum CordovaApproovHttpDomainPolicy {
+
+    // No Approov protection, the request is sent unaltered
+    UNPROTECTED,
+
+    // An Approov token is added to the request, the connection is not MITM protected
+    TOKEN_ONLY,
+
+    // An Approov token is added to the request and the connection is protected by dynamic certificate pinning
+    MITM_PROTECTED;
+
+    // Get the policy for a protected domain
+    public static CordovaApproovHttpDomainPolicy forProtectedDomain(boolean isMITMProtected) {
+        return isMITMProtected ? MITM_PROTECTED : TOKEN_ONLY;
+    }
+
+    // Check whether the policy adds an Approov token to requests
+    public boolean isProtected() {
+        return this != UNPROTECTED;
+    }
+
+    // Check whether the policy protects the connection that transmits the Approov token from MITM attack
+    public boolean isMITMProtected() {
+        return this == MITM_PROTECTED;
+    }
+
+}
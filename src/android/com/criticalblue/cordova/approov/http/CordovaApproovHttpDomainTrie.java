@@ -0,0 +1,124 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpDomainTrie.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable index of domain patterns, organized as a trie over the reversed labels of the domain names. A pattern is
+ * either an exact domain name ("api.example.com") or a wildcard ("*.api.example.com") that matches all subdomains of
+ * the domain following the "*." prefix, at any depth, but not the domain itself. Lookup cost depends on the number of
+ * labels in the host name, not on the number of patterns. The most specific pattern matching a host name wins.
+ */
+final class CordovaApproovHttpDomainTrie<V> {
+
+    // Prefix identifying a wildcard pattern
+    static final String WILDCARD_PREFIX = "*.";
+
+    // Trie node for one domain label, holding the values for the exact domain and for the wildcard below it
+    private static final class Node<V> {
+        final Map<String, Node<V>> children = new HashMap<String, Node<V>>();
+        V exactValue;
+        V wildcardValue;
+    }
+
+    // Root node, representing the empty domain
+    private final Node<V> root;
+
+    private CordovaApproovHttpDomainTrie(Node<V> root) {
+        this.root = root;
+    }
+
+    // Check whether a domain pattern is a wildcard pattern
+    static boolean isWildcard(String pattern) {
+        return pattern.startsWith(WILDCARD_PREFIX);
+    }
+
+    // Check whether a domain pattern is valid: a wildcard may only appear as the complete leftmost label
+    static boolean isValidPattern(String pattern) {
+        String domain = isWildcard(pattern) ? pattern.substring(WILDCARD_PREFIX.length()) : pattern;
+        return !domain.isEmpty() && domain.indexOf('*') < 0 && !domain.startsWith(".") && !domain.endsWith(".");
+    }
+
+    // Build a trie from a map of domain patterns to values
+    static <V> CordovaApproovHttpDomainTrie<V> build(Map<String, V> patterns) {
+        Node<V> root = new Node<V>();
+        for (Map.Entry<String, V> pattern : patterns.entrySet()) {
+            boolean isWildcard = isWildcard(pattern.getKey());
+            String domain = isWildcard ? pattern.getKey().substring(WILDCARD_PREFIX.length()) : pattern.getKey();
+            Node<V> node = root;
+            int labelEnd = domain.length();
+            while (labelEnd > 0) {
+                int labelStart = domain.lastIndexOf('.', labelEnd - 1) + 1;
+                String label = domain.substring(labelStart, labelEnd);
+                Node<V> child = node.children.get(label);
+                if (child == null) {
+                    child = new Node<V>();
+                    node.children.put(label, child);
+                }
+                node = child;
+                labelEnd = labelStart - 1;
+            }
+            if (isWildcard) {
+                node.wildcardValue = pattern.getValue();
+            } else {
+                node.exactValue = pattern.getValue();
+            }
+        }
+        return new CordovaApproovHttpDomainTrie<V>(root);
+    }
+
+    // Look up the value of the most specific pattern matching a host name. Returns null if no pattern matches.
+    V lookup(String host) {
+        V value = null;
+        Node<V> node = root;
+        int labelEnd = host.length();
+        while (labelEnd > 0) {
+            // A wildcard applies to the host if the host has further labels below the wildcard's domain
+            if (node.wildcardValue != null) {
+                value = node.wildcardValue;
+            }
+            int labelStart = host.lastIndexOf('.', labelEnd - 1) + 1;
+            node = node.children.get(host.substring(labelStart, labelEnd));
+            if (node == null) {
+                return value;
+            }
+            labelEnd = labelStart - 1;
+        }
+        return (node.exactValue != null) ? node.exactValue : value;
+    }
+
+    // Look up the value of the most specific wildcard pattern matching all subdomains of a domain. Returns null if no
+    // wildcard pattern matches.
+    V lookupWildcard(String domain) {
+        V value = null;
+        Node<V> node = root;
+        int labelEnd = domain.length();
+        while (node != null) {
+            if (node.wildcardValue != null) {
+                value = node.wildcardValue;
+            }
+            if (labelEnd <= 0) {
+                break;
+            }
+            int labelStart = domain.lastIndexOf('.', labelEnd - 1) + 1;
+            node = node.children.get(domain.substring(labelStart, labelEnd));
+            labelEnd = labelStart - 1;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,253 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpMetrics.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Low-overhead counters and fixed-bucket latency histograms for the plugin's hot paths, broken down per protected
+ * domain. Recording does not allocate once a domain has been seen: counters are striped across threads to avoid
+ * contention and histograms use fixed buckets. The metrics of a host are recorded for the protected domain pattern
+ * matching it, so that all hosts matched by a wildcard share one set of metrics and the number of sets is bounded by
+ * the number of protected domains. Metrics not attributable to a protected domain, such as those for unprotected
+ * requests or for the generic token, are recorded as "generic".
+ */
+final class CordovaApproovHttpMetrics {
+
+    // Events counted
+    enum Counter {
+        // Requests seen by the interceptor
+        REQUESTS,
+
+        // Requests seen by the interceptor that were Approov protected
+        PROTECTED_REQUESTS,
+
+        // Token requests served from the token cache
+        TOKEN_CACHE_HITS,
+
+        // Token requests not served from the token cache
+        TOKEN_CACHE_MISSES,
+
+        // Token fetches from the Approov SDK that failed
+        TOKEN_FETCH_FAILURES,
+
+        // Token fetches suspended by the circuit breaker
+        CIRCUIT_BREAKER_REJECTIONS,
+
+        // Pin checks that failed
+        PIN_CHECK_FAILURES,
+
+        // Pin checks skipped because the TLS session had already been verified
+        PIN_CHECK_CACHE_HITS,
+
+        // Flushes of the Approov SDK certificate cache
+        CERT_CACHE_FLUSHES
+    }
+
+    // Operations timed
+    enum Timer {
+        // Request interception, including token fetch and pinning setup
+        INTERCEPT,
+
+        // Token fetch from the Approov SDK
+        TOKEN_FETCH,
+
+        // Setup of certificate pinning on a connection
+        PINNING_SETUP,
+
+        // Hostname verification including the dynamic pin check
+        PIN_CHECK
+    }
+
+    // Upper bounds (inclusive, in microseconds) of the histogram buckets. A final bucket collects all larger values.
+    static final long[] BUCKET_BOUNDS_MICROS = {
+        50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000
+    };
+
+    // Number of stripes per counter, a power of two
+    private static final int STRIPES = 8;
+
+    // Spacing between stripes (in longs), keeping stripes on separate cache lines
+    private static final int STRIPE_SPACING = 8;
+
+    // Counters and histograms for one domain
+    private static final class MetricSet {
+        // Striped counters, one block of stripes per counter
+        final AtomicLongArray counters = new AtomicLongArray(Counter.values().length * STRIPES * STRIPE_SPACING);
+
+        // Histograms, one block per timer holding the bucket counts followed by the total in microseconds
+        final AtomicLongArray histograms =
+            new AtomicLongArray(Timer.values().length * (BUCKET_BOUNDS_MICROS.length + 2));
+
+        void increment(Counter counter) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            counters.incrementAndGet((counter.ordinal() * STRIPES + stripe) * STRIPE_SPACING);
+        }
+
+        void record(Timer timer, long micros) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+                bucket += 1;
+            }
+            int base = timer.ordinal() * (BUCKET_BOUNDS_MICROS.length + 2);
+            histograms.incrementAndGet(base + bucket);
+            histograms.addAndGet(base + BUCKET_BOUNDS_MICROS.length + 1, micros);
+        }
+
+        // Read and reset the counters and histograms, adding them to the totals
+        JSONObject snapshotAndReset(long[] counterTotals, long[] histogramTotals) throws JSONException {
+            JSONObject snapshot = new JSONObject();
+            for (Counter counter : Counter.values()) {
+                long count = 0;
+                for (int stripe = 0; stripe < STRIPES; stripe += 1) {
+                    count += counters.getAndSet((counter.ordinal() * STRIPES + stripe) * STRIPE_SPACING, 0);
+                }
+                counterTotals[counter.ordinal()] += count;
+                snapshot.put(toName(counter.name()), count);
+            }
+            int histogramLength = BUCKET_BOUNDS_MICROS.length + 2;
+            long[] values = new long[histogramLength];
+            for (Timer timer : Timer.values()) {
+                int base = timer.ordinal() * histogramLength;
+                for (int i = 0; i < histogramLength; i += 1) {
+                    values[i] = histograms.getAndSet(base + i, 0);
+                    histogramTotals[base + i] += values[i];
+                }
+                snapshot.put(toName(timer.name()), toHistogram(values));
+            }
+            return snapshot;
+        }
+    }
+
+    // Metrics not attributable to a domain
+    private static final MetricSet genericMetrics = new MetricSet();
+
+    // Map of protected domain patterns to their metrics
+    private static final ConcurrentMap<String, MetricSet> domainMetrics = new ConcurrentHashMap<String, MetricSet>();
+
+    private CordovaApproovHttpMetrics() {
+    }
+
+    // Get the metrics for the protected domain matching a host (domain == null signifies metrics not attributable to a
+    // domain)
+    private static MetricSet getMetricSet(String domain) {
+        String pattern = (domain == null) ? null : CordovaApproovHttpUtil.getProtectedDomainPattern(domain);
+        if (pattern == null) {
+            return genericMetrics;
+        }
+        MetricSet metricSet = domainMetrics.get(pattern);
+        if (metricSet == null) {
+            MetricSet newMetricSet = new MetricSet();
+            metricSet = domainMetrics.putIfAbsent(pattern, newMetricSet);
+            if (metricSet == null) {
+                metricSet = newMetricSet;
+            }
+        }
+        return metricSet;
+    }
+
+    // Count an event for a domain (domain == null signifies an event not attributable to a domain)
+    static void increment(String domain, Counter counter) {
+        getMetricSet(domain).increment(counter);
+    }
+
+    // Start timing an operation, returning the start time to pass to stopTimer()
+    static long startTimer() {
+        return System.nanoTime();
+    }
+
+    // Record the duration of an operation for a domain (domain == null signifies an operation not attributable to a
+    // domain)
+    static void stopTimer(String domain, Timer timer, long startNanos) {
+        getMetricSet(domain).record(timer, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    // Get a snapshot of all metrics and reset them. The snapshot holds the metrics totalled over all domains
+    // ("total"), those not attributable to a domain ("generic") and those of each protected domain pattern
+    // ("domains").
+    static JSONObject snapshotAndReset() throws JSONException {
+        long[] counterTotals = new long[Counter.values().length];
+        long[] histogramTotals = new long[Timer.values().length * (BUCKET_BOUNDS_MICROS.length + 2)];
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("bucketBoundsMicros", new JSONArray(toList(BUCKET_BOUNDS_MICROS)));
+        snapshot.put("generic", genericMetrics.snapshotAndReset(counterTotals, histogramTotals));
+        JSONObject domains = new JSONObject();
+        for (Map.Entry<String, MetricSet> entry : domainMetrics.entrySet()) {
+            domains.put(entry.getKey(), entry.getValue().snapshotAndReset(counterTotals, histogramTotals));
+        }
+        snapshot.put("domains", domains);
+        JSONObject total = new JSONObject();
+        for (Counter counter : Counter.values()) {
+            total.put(toName(counter.name()), counterTotals[counter.ordinal()]);
+        }
+        int histogramLength = BUCKET_BOUNDS_MICROS.length + 2;
+        long[] values = new long[histogramLength];
+        for (Timer timer : Timer.values()) {
+            System.arraycopy(histogramTotals, timer.ordinal() * histogramLength, values, 0, histogramLength);
+            total.put(toName(timer.name()), toHistogram(values));
+        }
+        snapshot.put("total", total);
+        return snapshot;
+    }
+
+    // Convert histogram values (bucket counts followed by the total in microseconds) to JSON
+    private static JSONObject toHistogram(long[] values) throws JSONException {
+        long count = 0;
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i <= BUCKET_BOUNDS_MICROS.length; i += 1) {
+            count += values[i];
+            buckets.put(values[i]);
+        }
+        JSONObject histogram = new JSONObject();
+        histogram.put("count", count);
+        histogram.put("totalMicros", values[BUCKET_BOUNDS_MICROS.length + 1]);
+        histogram.put("buckets", buckets);
+        return histogram;
+    }
+
+    // Convert an array of longs to a list for conversion to JSON
+    private static List<Long> toList(long[] array) {
+        List<Long> list = new ArrayList<Long>();
+        for (long value : array) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    // Convert an enum constant name such as TOKEN_CACHE_HITS to a JSON name such as tokenCacheHits
+    private static String toName(String constantName) {
+        StringBuilder name = new StringBuilder();
+        boolean isUpperCase = false;
+        for (char c : constantName.toCharArray()) {
+            if (c == '_') {
+                isUpperCase = true;
+            } else {
+                name.append(isUpperCase ? c : Character.toLowerCase(c));
+                isUpperCase = false;
+            }
+        }
+        return name.toString();
+    }
+
+}
@@ -0,0 +1,552 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpOkHttpConnection.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Handshake;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Pipe;
+
+/**
+ * HTTPS connection sending a request through a client of the OkHttp transport, using OkHttp's call API. Like the
+ * platform's connection, the request body is buffered in memory and the request is sent when the response is first
+ * accessed, unless a fixed-length or chunked streaming mode is set. In streaming mode, the request is sent as soon as
+ * the output stream is obtained and the body is streamed to the call while it is written. Connections to MITM
+ * protected hosts are pinned by the client. A hostname verifier or SSL socket factory set on the connection, e.g. for
+ * the HTTP plugin's SSL modes, only applies to this request, and connections to MITM protected hosts remain subject to
+ * dynamic pinning. The transport provides the client for the connection's settings.
+ */
+final class CordovaApproovHttpOkHttpConnection extends HttpsURLConnection {
+
+    // Maximum number of bytes of a streamed request body buffered between the writer and the call
+    private static final long STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Orders header names case-insensitively, with the null name of the status line first
+    private static final Comparator<String> HEADER_NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String name1, String name2) {
+            if (name1 == name2) {
+                return 0;
+            } else if (name1 == null) {
+                return -1;
+            } else if (name2 == null) {
+                return 1;
+            }
+            return String.CASE_INSENSITIVE_ORDER.compare(name1, name2);
+        }
+    };
+
+    // Client of the transport the connection has been opened with
+    private final OkHttpClient client;
+
+    // Proxy for the request, null if the client's applies
+    private final Proxy proxy;
+
+    // Hostname verifier reported for the connection unless one has been set on it
+    private final HostnameVerifier defaultHostnameVerifier;
+
+    // Flag indicating whether the client pins the connection
+    private final boolean isPinned;
+
+    // Request headers
+    private final Headers.Builder requestHeaders = new Headers.Builder();
+
+    // Hostname verifier and SSL socket factory set on the connection, null if the client's apply
+    private HostnameVerifier hostnameVerifier;
+    private SSLSocketFactory sslSocketFactory;
+
+    // Buffered request body, null if no request body has been written
+    private ByteArrayOutputStream requestBody;
+
+    // Flag indicating whether a streaming mode is set, and the length of the request body in fixed-length streaming
+    // mode, -1 in chunked streaming mode
+    private boolean isStreaming;
+    private long streamingLength = -1;
+
+    // Sink of the streamed request body, null unless the request body is streamed
+    private BufferedSink streamedBody;
+
+    // Counted down once the response or failure of a request with a streamed body is available
+    private final CountDownLatch streamedCallDone = new CountDownLatch(1);
+
+    // Call sending the request, and its response or failure
+    private volatile Call call;
+    private volatile Response response;
+    private volatile IOException failure;
+
+    CordovaApproovHttpOkHttpConnection(URL url, OkHttpClient client, Proxy proxy,
+            HostnameVerifier defaultHostnameVerifier, boolean isPinned) {
+        super(url);
+        this.client = client;
+        this.proxy = proxy;
+        this.defaultHostnameVerifier = defaultHostnameVerifier;
+        this.isPinned = isPinned;
+        super.setConnectTimeout(client.connectTimeoutMillis());
+        super.setReadTimeout(client.readTimeoutMillis());
+    }
+
+    // Check whether the client pins the connection
+    boolean isPinned() {
+        return isPinned;
+    }
+
+    // Send the request, unless it has been sent already, and get its response
+    private Response execute() throws IOException {
+        if (streamedBody != null) {
+            return awaitStreamedCall();
+        } else if (response != null) {
+            return response;
+        } else if (failure != null) {
+            throw failure;
+        }
+        connected = true;
+        try {
+            Call newCall = getClient().newCall(buildRequest(getBufferedBody()));
+            call = newCall;
+            response = newCall.execute();
+            return response;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    // Send the request with a body streamed through a pipe. The call is made asynchronously, so that it reads the body
+    // while the caller writes it.
+    private void startStreamedCall() throws IOException {
+        final Pipe pipe = new Pipe(STREAM_BUFFER_SIZE);
+        // A stalled call makes the writer fail rather than block
+        pipe.sink().timeout().timeout(getReadTimeout(), TimeUnit.MILLISECONDS);
+        final long contentLength = streamingLength;
+        final AtomicBoolean isWritten = new AtomicBoolean();
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return null;
+            }
+
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                if (!isWritten.compareAndSet(false, true)) {
+                    throw new ProtocolException("Cannot retry a request with a streamed body");
+                }
+                long length = sink.writeAll(pipe.source());
+                if (contentLength != -1 && length != contentLength) {
+                    throw new ProtocolException("Expected " + contentLength + " bytes of the request body but received "
+                        + length);
+                }
+            }
+
+            // Prevents retries by OkHttp versions that support one-shot request bodies
+            public boolean isOneShot() {
+                return true;
+            }
+        };
+        Call newCall = getClient().newCall(buildRequest(body));
+        call = newCall;
+        connected = true;
+        streamedBody = Okio.buffer(pipe.sink());
+        newCall.enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response callResponse) {
+                complete(callResponse, null);
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                complete(null, e);
+            }
+
+            private void complete(Response callResponse, IOException e) {
+                response = callResponse;
+                failure = e;
+                // Writing any remaining body fails rather than blocks
+                try {
+                    pipe.source().close();
+                } catch (IOException closeException) {
+                    // Closing the pipe does not fail
+                }
+                streamedCallDone.countDown();
+            }
+        });
+    }
+
+    // Complete the streamed request body and wait for the response of its call
+    private Response awaitStreamedCall() throws IOException {
+        try {
+            streamedBody.close();
+        } catch (IOException e) {
+            // The call has failed before it read the whole body, and reports its failure
+        }
+        try {
+            streamedCallDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            disconnect();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return response;
+    }
+
+    // Get the buffered request body, an empty body for a POST or PUT request without body, or null
+    private RequestBody getBufferedBody() {
+        if (requestBody != null) {
+            return RequestBody.create(null, requestBody.toByteArray());
+        } else if ("POST".equals(method) || "PUT".equals(method)) {
+            return RequestBody.create(null, new byte[0]);
+        }
+        return null;
+    }
+
+    // Build the request from the connection's method and headers, and a request body
+    private Request buildRequest(RequestBody body) throws ProtocolException {
+        if (ifModifiedSince != 0 && requestHeaders.get("If-Modified-Since") == null) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            requestHeaders.add("If-Modified-Since", format.format(new Date(ifModifiedSince)));
+        }
+        try {
+            // The connection applies its timeouts to the call
+            return new Request.Builder()
+                .url(getURL())
+                .headers(requestHeaders.build())
+                .method(method, body)
+                .tag(CordovaApproovHttpOkHttpConnection.class, this)
+                .build();
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+    }
+
+    // Get the client for the connection's settings
+    private OkHttpClient getClient() throws IOException {
+        try {
+            return CordovaApproovHttpOkHttpTransport.getClient(client, isPinned, proxy, hostnameVerifier,
+                sslSocketFactory, getInstanceFollowRedirects());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Approov OkHttp transport cannot apply the SSL socket factory", e);
+        }
+    }
+
+    // Get the TLS handshake of the response
+    private Handshake getHandshake() {
+        if (response == null) {
+            throw new IllegalStateException("Connection has not yet been established");
+        }
+        return response.handshake();
+    }
+
+    // Get the status line of the response
+    private static String getStatusLine(Response response) {
+        return ((response.protocol() == Protocol.HTTP_1_0) ? "HTTP/1.0 " : "HTTP/1.1 ") + response.code() + " "
+            + response.message();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // A request with a body is sent once the body has been written and the response is accessed
+        if (!getDoOutput()) {
+            execute();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (response != null) {
+            response.close();
+        } else {
+            Call currentCall = call;
+            if (currentCall != null) {
+                currentCall.cancel();
+            }
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        Proxy currentProxy = (proxy == null) ? client.proxy() : proxy;
+        return currentProxy != null && currentProxy.type() != Proxy.Type.DIRECT;
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        } else if (key == null) {
+            throw new NullPointerException("key is null");
+        }
+        if (value == null) {
+            requestHeaders.removeAll(key);
+        } else {
+            requestHeaders.set(key, value);
+        }
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        } else if (key == null) {
+            throw new NullPointerException("key is null");
+        }
+        if (value != null) {
+            requestHeaders.add(key, value);
+        }
+    }
+
+    @Override
+    public String getRequestProperty(String key) {
+        return (key == null) ? null : requestHeaders.get(key);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        return requestHeaders.build().toMultimap();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (connected) {
+            throw new ProtocolException("Cannot write the request body after the request has been sent");
+        } else if (!getDoOutput()) {
+            throw new ProtocolException("Cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        if ("GET".equals(method)) {
+            method = "POST";
+        } else if ("HEAD".equals(method)) {
+            throw new ProtocolException("HEAD does not support writing");
+        }
+        if (isStreaming) {
+            if (streamedBody == null) {
+                startStreamedCall();
+            }
+            return streamedBody.outputStream();
+        }
+        if (requestBody == null) {
+            requestBody = new ByteArrayOutputStream();
+        }
+        return requestBody;
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(int contentLength) {
+        setFixedLengthStreamingMode((long) contentLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(long contentLength) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        } else if (contentLength < 0) {
+            throw new IllegalArgumentException("Invalid content length: " + contentLength);
+        }
+        isStreaming = true;
+        streamingLength = contentLength;
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        isStreaming = true;
+        streamingLength = -1;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return execute().code();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return execute().message();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!getDoInput()) {
+            throw new ProtocolException("Cannot read from a URLConnection if doInput=false - call setDoInput(true)");
+        }
+        Response currentResponse = execute();
+        if (currentResponse.code() >= HTTP_BAD_REQUEST) {
+            throw new FileNotFoundException(getURL().toString());
+        }
+        return currentResponse.body().byteStream();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        // Like HttpURLConnection, this does not send the request
+        if (response == null || response.code() < HTTP_BAD_REQUEST) {
+            return null;
+        }
+        return response.body().byteStream();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            Response currentResponse = execute();
+            return (name == null) ? getStatusLine(currentResponse) : currentResponse.header(name);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        try {
+            Headers headers = execute().headers();
+            return (n <= 0 || n > headers.size()) ? null : headers.name(n - 1);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        try {
+            Response currentResponse = execute();
+            Headers headers = currentResponse.headers();
+            if (n == 0) {
+                return getStatusLine(currentResponse);
+            }
+            return (n < 0 || n > headers.size()) ? null : headers.value(n - 1);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            Response currentResponse = execute();
+            Headers headers = currentResponse.headers();
+            Map<String, List<String>> headerFields = new TreeMap<String, List<String>>(HEADER_NAME_ORDER);
+            headerFields.put(null, Collections.singletonList(getStatusLine(currentResponse)));
+            for (String name : headers.names()) {
+                headerFields.put(name, Collections.unmodifiableList(new ArrayList<String>(headers.values(name))));
+            }
+            return Collections.unmodifiableMap(headerFields);
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    @Override
+    public void setHostnameVerifier(HostnameVerifier verifier) {
+        if (verifier == null) {
+            throw new IllegalArgumentException("No HostnameVerifier specified");
+        }
+        hostnameVerifier = verifier;
+    }
+
+    @Override
+    public HostnameVerifier getHostnameVerifier() {
+        return (hostnameVerifier == null) ? defaultHostnameVerifier : hostnameVerifier;
+    }
+
+    @Override
+    public void setSSLSocketFactory(SSLSocketFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("No SSLSocketFactory specified");
+        }
+        sslSocketFactory = factory;
+    }
+
+    @Override
+    public SSLSocketFactory getSSLSocketFactory() {
+        return (sslSocketFactory == null) ? client.sslSocketFactory() : sslSocketFactory;
+    }
+
+    @Override
+    public String getCipherSuite() {
+        Handshake handshake = getHandshake();
+        return (handshake == null) ? null : handshake.cipherSuite().javaName();
+    }
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+        Handshake handshake = getHandshake();
+        if (handshake == null || handshake.localCertificates().isEmpty()) {
+            return null;
+        }
+        List<Certificate> certificates = handshake.localCertificates();
+        return certificates.toArray(new Certificate[certificates.size()]);
+    }
+
+    @Override
+    public Certificate[] getServerCertificates() throws SSLPeerUnverifiedException {
+        Handshake handshake = getHandshake();
+        if (handshake == null || handshake.peerCertificates().isEmpty()) {
+            throw new SSLPeerUnverifiedException("No server certificates");
+        }
+        List<Certificate> certificates = handshake.peerCertificates();
+        return certificates.toArray(new Certificate[certificates.size()]);
+    }
+
+}
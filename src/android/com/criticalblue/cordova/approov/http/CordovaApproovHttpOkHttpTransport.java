@@ -0,0 +1,346 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpOkHttpTransport.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import com.github.kevinsawicki.http.HttpRequest;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import android.util.Base64;
+
+import okhttp3.CertificatePinner;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Optional transport routing Approov protected requests through shared, pooled OkHttp clients, so that pinned
+ * connections are reused across requests and can be multiplexed over HTTP/2. MITM protected requests always use a
+ * client whose certificate pinner is built from the pin store and rebuilt whenever pins or backup pins change; rebuilt
+ * clients share the connection pool. The client's hostname verifier is a single shared dynamic pinning verifier, which
+ * obtains the pins of hosts not yet known to the certificate pinner, such as redirect targets, rejects hosts for which
+ * no pin can be obtained and invalidates rejected pins. The Approov token continues to be added by the request
+ * interceptor, and is only sent once the connection has passed the pin checks. Unprotected requests keep using the
+ * connection factory that was installed when the transport was enabled, which is restored when it is disabled. The
+ * timeouts set on a connection are applied to its call, and clients for the other settings of a connection, such as a
+ * hostname verifier or proxy, are derived once and reused, so that connections with the same settings share pooled
+ * connections.
+ */
+final class CordovaApproovHttpOkHttpTransport {
+
+    // Maximum number of clients derived for the settings of connections that are kept for reuse
+    private static final int MAX_DERIVED_CLIENTS = 16;
+
+    // Interceptor applying the timeouts set on the connection sending a request to its call
+    private static final Interceptor timeoutInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            CordovaApproovHttpOkHttpConnection connection =
+                chain.request().tag(CordovaApproovHttpOkHttpConnection.class);
+            if (connection == null) {
+                return chain.proceed(chain.request());
+            }
+            return chain
+                .withConnectTimeout(connection.getConnectTimeout(), TimeUnit.MILLISECONDS)
+                .withReadTimeout(connection.getReadTimeout(), TimeUnit.MILLISECONDS)
+                .proceed(chain.request());
+        }
+    };
+
+    // Client for protected requests without MITM protection, derived from the base client set for the transport,
+    // together with the dynamic pinning verifier shared by all pinned connections. Sharing a single verifier instance
+    // allows pooled connections to be reused, as OkHttp only reuses a connection for an equal hostname verifier.
+    private static final class BaseClient {
+        final OkHttpClient client;
+        final CordovaApproovHttpPinningVerifier pinningVerifier;
+
+        BaseClient(OkHttpClient client) {
+            // Like the default transport, never follow redirects from HTTPS to HTTP
+            this.client = client.newBuilder()
+                .followSslRedirects(false)
+                .addInterceptor(timeoutInterceptor)
+                .build();
+            this.pinningVerifier = new CordovaApproovHttpPinningVerifier(client.hostnameVerifier());
+        }
+    }
+
+    // Client for MITM protected requests, derived from a base client, together with the versions of the pins and
+    // protected domains its certificate pinner was built for
+    private static final class PinnedClient {
+        final BaseClient baseClient;
+        final OkHttpClient client;
+        final int pinVersion;
+        final Object domainsVersion;
+
+        PinnedClient(BaseClient baseClient, OkHttpClient client, int pinVersion, Object domainsVersion) {
+            this.baseClient = baseClient;
+            this.client = client;
+            this.pinVersion = pinVersion;
+            this.domainsVersion = domainsVersion;
+        }
+    }
+
+    // Connection factory creating connections for Approov protected requests through the OkHttp clients, and
+    // delegating all other requests to the previously installed factory
+    private static final HttpRequest.ConnectionFactory connectionFactory = new HttpRequest.ConnectionFactory() {
+        @Override
+        public HttpURLConnection create(URL url) throws IOException {
+            if (!isEnabled || !CordovaApproovHttpUtil.isApproovProtected(url)) {
+                return previousConnectionFactory.create(url);
+            }
+            return openConnection(url, null);
+        }
+
+        @Override
+        public HttpURLConnection create(URL url, Proxy proxy) throws IOException {
+            if (!isEnabled || !CordovaApproovHttpUtil.isApproovProtected(url)) {
+                return previousConnectionFactory.create(url, proxy);
+            }
+            return openConnection(url, proxy);
+        }
+    };
+
+    // Connection factory that was installed when the transport was enabled
+    private static volatile HttpRequest.ConnectionFactory previousConnectionFactory =
+        HttpRequest.ConnectionFactory.DEFAULT;
+
+    // Flag indicating whether the transport's factory is installed, either directly or through a factory installed
+    // later that may delegate to it. Guarded by the class monitor.
+    private static boolean isInstalled;
+
+    // Current base client and pinned client. Readers access them without locking, the synchronized methods publish
+    // new ones.
+    private static volatile BaseClient baseClient;
+    private static volatile PinnedClient pinnedClient;
+
+    // Clients derived from the transport's clients for the settings of connections, keyed by the client they are
+    // derived from and those settings
+    private static final ConcurrentMap<List<Object>, OkHttpClient> derivedClients =
+        new ConcurrentHashMap<List<Object>, OkHttpClient>();
+
+    // Flag indicating whether the transport is enabled
+    private static volatile boolean isEnabled;
+
+    // Trust manager of the platform, used with SSL socket factories set on connections. Guarded by the class monitor.
+    private static X509TrustManager platformTrustManager;
+
+    private CordovaApproovHttpOkHttpTransport() {
+    }
+
+    // Route Approov protected requests through the OkHttp clients
+    static synchronized void enable() {
+        if (baseClient == null) {
+            setBaseClient(new OkHttpClient());
+        }
+        if (!isInstalled) {
+            previousConnectionFactory = getConnectionFactory();
+            HttpRequest.setConnectionFactory(connectionFactory);
+            isInstalled = true;
+        }
+        isEnabled = true;
+    }
+
+    // Stop routing Approov protected requests through the OkHttp clients. The previous connection factory is restored,
+    // unless another factory has been installed in the meantime, which may delegate to the transport's factory; while
+    // the transport is disabled, its factory delegates all requests to the previous one.
+    static synchronized void disable() {
+        if (isInstalled && getConnectionFactory() == connectionFactory) {
+            HttpRequest.setConnectionFactory(previousConnectionFactory);
+            isInstalled = false;
+        }
+        isEnabled = false;
+    }
+
+    // Get the connection factory installed for HTTP requests. HttpRequest does not expose it, so it is read from its
+    // field; should that fail, e.g. because the field has been renamed by code shrinking, the default factory is
+    // assumed.
+    private static HttpRequest.ConnectionFactory getConnectionFactory() {
+        try {
+            Field field = HttpRequest.class.getDeclaredField("CONNECTION_FACTORY");
+            field.setAccessible(true);
+            Object factory = field.get(null);
+            if (factory instanceof HttpRequest.ConnectionFactory) {
+                return (HttpRequest.ConnectionFactory) factory;
+            }
+        } catch (NoSuchFieldException e) {
+            // Assume the default factory
+        } catch (IllegalAccessException e) {
+            // Assume the default factory
+        }
+        return HttpRequest.ConnectionFactory.DEFAULT;
+    }
+
+    // Set the client the transport's clients are derived from, e.g. to configure timeouts or trusted certificates
+    static synchronized void setBaseClient(OkHttpClient client) {
+        baseClient = new BaseClient(client);
+        pinnedClient = null;
+        derivedClients.clear();
+    }
+
+    // Check whether a connection has been created by the enabled transport for a MITM protected request, in which
+    // case the transport's client pins the connection
+    static boolean isPinnedConnection(HttpURLConnection connection) {
+        return isEnabled && connection instanceof CordovaApproovHttpOkHttpConnection
+            && ((CordovaApproovHttpOkHttpConnection) connection).isPinned();
+    }
+
+    // Get the trust manager of the platform
+    static synchronized X509TrustManager getPlatformTrustManager() throws GeneralSecurityException {
+        if (platformTrustManager == null) {
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init((KeyStore) null);
+            for (TrustManager trustManager : factory.getTrustManagers()) {
+                if (trustManager instanceof X509TrustManager) {
+                    platformTrustManager = (X509TrustManager) trustManager;
+                    break;
+                }
+            }
+            if (platformTrustManager == null) {
+                throw new GeneralSecurityException("No X509TrustManager available");
+            }
+        }
+        return platformTrustManager;
+    }
+
+    // Open a connection for a protected request through the client for its protection policy
+    private static HttpURLConnection openConnection(URL url, Proxy proxy) {
+        BaseClient currentBaseClient = baseClient;
+        boolean isPinned = CordovaApproovHttpUtil.isApproovMITMProtected(url);
+        OkHttpClient client = isPinned ? getPinnedClient(url.getHost(), currentBaseClient) : currentBaseClient.client;
+        return new CordovaApproovHttpOkHttpConnection(url, client, proxy, currentBaseClient.client.hostnameVerifier(),
+            isPinned);
+    }
+
+    // Get the client for the settings of a connection, derived from the transport's client the connection has been
+    // opened with. A hostname verifier set on a pinned connection is wrapped in a dynamic pinning verifier. Derived
+    // clients are reused, so that their connections remain poolable and the verdicts of their pinning verifier remain
+    // cached.
+    static OkHttpClient getClient(OkHttpClient client, boolean isPinned, Proxy proxy, HostnameVerifier hostnameVerifier,
+            SSLSocketFactory sslSocketFactory, boolean followRedirects) throws GeneralSecurityException {
+        if (proxy == null && hostnameVerifier == null && sslSocketFactory == null
+                && followRedirects == client.followRedirects()) {
+            return client;
+        }
+        List<Object> key = Arrays.<Object>asList(client, proxy, hostnameVerifier, sslSocketFactory, followRedirects);
+        OkHttpClient derivedClient = derivedClients.get(key);
+        if (derivedClient != null) {
+            return derivedClient;
+        }
+        OkHttpClient.Builder builder = client.newBuilder().followRedirects(followRedirects);
+        if (proxy != null) {
+            builder.proxy(proxy);
+        }
+        if (hostnameVerifier != null) {
+            // Keep dynamic pinning in place for a pinned connection
+            builder.hostnameVerifier((isPinned && !(hostnameVerifier instanceof CordovaApproovHttpPinningVerifier))
+                ? new CordovaApproovHttpPinningVerifier(hostnameVerifier) : hostnameVerifier);
+        }
+        if (sslSocketFactory != null) {
+            // The certificate pinner cannot check chains whose trust is decided by the SSL socket factory, so pinned
+            // connections are only checked by the dynamic pinning verifier
+            builder.sslSocketFactory(sslSocketFactory, getPlatformTrustManager())
+                .certificatePinner(CertificatePinner.DEFAULT);
+        }
+        derivedClient = builder.build();
+        if (derivedClients.size() >= MAX_DERIVED_CLIENTS) {
+            derivedClients.clear();
+        }
+        OkHttpClient previousClient = derivedClients.putIfAbsent(key, derivedClient);
+        return (previousClient == null) ? derivedClient : previousClient;
+    }
+
+    // Get the client for a MITM protected request. The pin for the host is obtained first so that the certificate
+    // pinner covers it; if no pin can be obtained, the pinning verifier rejects the connection.
+    private static OkHttpClient getPinnedClient(String hostname, BaseClient currentBaseClient) {
+        try {
+            CordovaApproovHttpPinStore.getPin(hostname);
+        } catch (CertificateException e) {
+            // The pinning verifier rejects the connection
+        }
+        // The versions are read before the certificate pinner is built, so that changes made in the meantime cause
+        // another rebuild
+        int pinVersion = CordovaApproovHttpPinStore.getVersion();
+        Object domainsVersion = CordovaApproovHttpUtil.getProtectedDomainsVersion();
+        PinnedClient currentPinnedClient = pinnedClient;
+        if (currentPinnedClient != null && currentPinnedClient.baseClient == currentBaseClient
+                && currentPinnedClient.pinVersion == pinVersion
+                && currentPinnedClient.domainsVersion == domainsVersion) {
+            return currentPinnedClient.client;
+        }
+        return buildPinnedClient(currentBaseClient, pinVersion, domainsVersion);
+    }
+
+    // Build and publish the client for MITM protected requests, unless another thread has already done so
+    private static synchronized OkHttpClient buildPinnedClient(BaseClient currentBaseClient, int pinVersion,
+            Object domainsVersion) {
+        PinnedClient currentPinnedClient = pinnedClient;
+        if (currentPinnedClient != null && currentPinnedClient.baseClient == currentBaseClient
+                && currentPinnedClient.pinVersion == pinVersion
+                && currentPinnedClient.domainsVersion == domainsVersion) {
+            return currentPinnedClient.client;
+        }
+        // Rebuilding the client from the base client keeps the connection pool; connections are only reused for an
+        // unchanged certificate pinner
+        OkHttpClient client = currentBaseClient.client.newBuilder()
+            .certificatePinner(buildCertificatePinner())
+            .hostnameVerifier(currentBaseClient.pinningVerifier)
+            .build();
+        if (baseClient == currentBaseClient) {
+            pinnedClient = new PinnedClient(currentBaseClient, client, pinVersion, domainsVersion);
+            // Clients derived from the previous pinned client are not used any longer
+            derivedClients.clear();
+        }
+        return client;
+    }
+
+    // Build a certificate pinner accepting, for each host in the pin store, the current and previous pins and the
+    // host's backup pins
+    private static CertificatePinner buildCertificatePinner() {
+        CertificatePinner.Builder builder = new CertificatePinner.Builder();
+        for (Map.Entry<String, CordovaApproovHttpPinStore.PinnedCert> entry
+                : CordovaApproovHttpPinStore.getPins().entrySet()) {
+            String hostname = entry.getKey();
+            Set<ByteBuffer> digests = new HashSet<ByteBuffer>(entry.getValue().acceptedDigests);
+            digests.addAll(CordovaApproovHttpUtil.getBackupPins(hostname));
+            for (ByteBuffer digest : digests) {
+                builder.add(hostname, "sha256/" + Base64.encodeToString(digest.array(), Base64.NO_WRAP));
+            }
+        }
+        return builder.build();
+    }
+
+}
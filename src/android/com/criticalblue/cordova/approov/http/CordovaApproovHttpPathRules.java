@@ -0,0 +1,171 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpPathRules.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable set of path-prefix rules deciding which requests to a protected domain are Approov protected. Prefixes
+ * match on path segment boundaries, so "/api" matches "/api" and "/api/v1", but not "/apis". The longest matching
+ * include or exclude prefix decides; if an include and an exclude prefix are identical, the include prefix wins. If
+ * no include prefixes are given, all paths are included.
+ */
+final class CordovaApproovHttpPathRules {
+
+    // Rules that protect all paths
+    static final CordovaApproovHttpPathRules ALL_PATHS =
+        new CordovaApproovHttpPathRules(Collections.<String>emptySet(), Collections.<String>emptySet());
+
+    // Trie node for one path segment, holding the verdict of a prefix ending at the segment (null if none does)
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<String, Node>();
+        Boolean isIncluded;
+    }
+
+    // Normalized include prefixes, empty if all paths are included
+    private final Set<String> includePrefixes;
+
+    // Normalized exclude prefixes
+    private final Set<String> excludePrefixes;
+
+    // Trie over the path segments of all prefixes
+    private final Node root;
+
+    private CordovaApproovHttpPathRules(Set<String> includePrefixes, Set<String> excludePrefixes) {
+        this.includePrefixes = includePrefixes;
+        this.excludePrefixes = excludePrefixes;
+        root = new Node();
+        root.isIncluded = includePrefixes.isEmpty() ? Boolean.TRUE : null;
+        for (String prefix : excludePrefixes) {
+            addPrefix(prefix, false);
+        }
+        for (String prefix : includePrefixes) {
+            addPrefix(prefix, true);
+        }
+    }
+
+    // Create rules from include and exclude prefixes. Each prefix must start with "/".
+    static CordovaApproovHttpPathRules create(Collection<String> includePrefixes, Collection<String> excludePrefixes) {
+        if (includePrefixes.isEmpty() && excludePrefixes.isEmpty()) {
+            return ALL_PATHS;
+        }
+        return new CordovaApproovHttpPathRules(normalize(includePrefixes), normalize(excludePrefixes));
+    }
+
+    // Check whether all paths are protected
+    boolean isAllPaths() {
+        return includePrefixes.isEmpty() && excludePrefixes.isEmpty();
+    }
+
+    // Get the normalized include prefixes, empty if all paths are included
+    Set<String> getIncludePrefixes() {
+        return includePrefixes;
+    }
+
+    // Get the normalized exclude prefixes
+    Set<String> getExcludePrefixes() {
+        return excludePrefixes;
+    }
+
+    // Merge with another set of rules such that protection is never narrowed: a path protected by either set of rules
+    // remains protected
+    CordovaApproovHttpPathRules merge(CordovaApproovHttpPathRules other) {
+        Set<String> includes = new TreeSet<String>();
+        if (!includePrefixes.isEmpty() && !other.includePrefixes.isEmpty()) {
+            includes.addAll(includePrefixes);
+            includes.addAll(other.includePrefixes);
+        }
+        Set<String> excludes = new TreeSet<String>(excludePrefixes);
+        excludes.retainAll(other.excludePrefixes);
+        // Exclusions of one set of rules must not remove paths included by the other
+        if (!includes.isEmpty()) {
+            excludes.removeAll(includes);
+        }
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            return ALL_PATHS;
+        }
+        return new CordovaApproovHttpPathRules(Collections.unmodifiableSet(includes),
+            Collections.unmodifiableSet(excludes));
+    }
+
+    // Check whether a request path is protected, using the longest matching prefix
+    boolean isIncluded(String path) {
+        if (isAllPaths()) {
+            return true;
+        }
+        boolean isIncluded = Boolean.TRUE.equals(root.isIncluded);
+        Node node = root;
+        int segmentStart = 0;
+        int length = (path == null) ? 0 : path.length();
+        while (segmentStart < length) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd < 0) {
+                segmentEnd = length;
+            }
+            if (segmentEnd > segmentStart) {
+                node = node.children.get(path.substring(segmentStart, segmentEnd));
+                if (node == null) {
+                    break;
+                }
+                if (node.isIncluded != null) {
+                    isIncluded = node.isIncluded;
+                }
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return isIncluded;
+    }
+
+    // Add a prefix to the trie, include prefixes overriding identical exclude prefixes
+    private void addPrefix(String prefix, boolean isIncluded) {
+        Node node = root;
+        for (String segment : prefix.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        node.isIncluded = isIncluded;
+    }
+
+    // Normalize prefixes by removing empty segments, e.g. "/api//v1/" becomes "/api/v1"
+    private static Set<String> normalize(Collection<String> prefixes) {
+        Set<String> normalizedPrefixes = new TreeSet<String>();
+        for (String prefix : prefixes) {
+            if (prefix == null || !prefix.startsWith("/")) {
+                throw new IllegalArgumentException("Approov protected domain's path prefix is invalid");
+            }
+            StringBuilder normalizedPrefix = new StringBuilder();
+            for (String segment : prefix.split("/")) {
+                if (!segment.isEmpty()) {
+                    normalizedPrefix.append('/').append(segment);
+                }
+            }
+            normalizedPrefixes.add((normalizedPrefix.length() == 0) ? "/" : normalizedPrefix.toString());
+        }
+        return Collections.unmodifiableSet(normalizedPrefixes);
+    }
+
+}
@@ -0,0 +1,329 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpPinStore.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import com.criticalblue.attestationlibrary.ApproovAttestation;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plugin-side store of the certificates pinned by the Approov SDK,
+ * reduced to SHA-256 digests of their SubjectPublicKeyInfo.
+ *
+ * The SDK certificate cache remains the source of truth: a pin is
+ * replaced whenever the SDK provides a different certificate for a
+ * host. The SDK cache can only be flushed as a whole, though, so the
+ * store keeps serving the pins of all other hosts after one host has
+ * been invalidated and the SDK cache has been flushed.
+ *
+ * When the pin for a host is replaced or invalidated, the previous pin
+ * remains accepted for an overlap window, so that hosts still
+ * presenting the previous certificate during a certificate rotation
+ * do not cause the pin to be invalidated and refetched again.
+ */
+final class CordovaApproovHttpPinStore {
+
+    /** Default overlap window during which a previous pin remains accepted. */
+    static final long DEFAULT_OVERLAP_MILLIS = 3600000;
+
+    /**
+     * A certificate pinned by the Approov SDK, reduced to the SHA-256
+     * digest of its SubjectPublicKeyInfo. The raw certificate bytes
+     * are kept to detect when the SDK provides a different certificate.
+     * The set of accepted digests holds the digest of the pinned
+     * certificate and, during its overlap window, that of the previous
+     * pin.
+     */
+    static final class PinnedCert {
+        final byte[] certBytes;
+        final byte[] spkiDigest;
+        final Set<ByteBuffer> acceptedDigests;
+        final long previousExpiresAtMillis;
+
+        PinnedCert(byte[] certBytes, byte[] spkiDigest, Set<ByteBuffer> acceptedDigests,
+                long previousExpiresAtMillis) {
+            this.certBytes = certBytes;
+            this.spkiDigest = spkiDigest;
+            this.acceptedDigests = acceptedDigests;
+            this.previousExpiresAtMillis = previousExpiresAtMillis;
+        }
+
+        /**
+         * Check whether a public key is accepted for the host, either
+         * because it is the pinned one or because it is the previous
+         * one and still within its overlap window.
+         *
+         * @param digest The SHA-256 digest of the public key.
+         * @return true if the public key is accepted, false otherwise.
+         */
+        boolean accepts(byte[] digest) {
+            return acceptedDigests.contains(ByteBuffer.wrap(digest));
+        }
+    }
+
+    /** A replaced or invalidated pin, accepted until its overlap window ends. */
+    private static final class PreviousPin {
+        final byte[] spkiDigest;
+        final long expiresAtMillis;
+
+        PreviousPin(byte[] spkiDigest, long expiresAtMillis) {
+            this.spkiDigest = spkiDigest;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /** Pinned certificates by hostname, parsed once per certificate. */
+    private static final ConcurrentMap<String, PinnedCert> pinnedCerts =
+            new ConcurrentHashMap<String, PinnedCert>();
+
+    /** Previous pins by hostname. */
+    private static final ConcurrentMap<String, PreviousPin> previousPins =
+            new ConcurrentHashMap<String, PreviousPin>();
+
+    /** Overlap window during which a previous pin remains accepted. */
+    private static volatile long overlapMillis = DEFAULT_OVERLAP_MILLIS;
+
+    /** Version of the store's content, incremented whenever a pin is added, replaced or removed. */
+    private static final AtomicInteger version = new AtomicInteger();
+
+    /** Per-thread SHA-256 digest, avoiding a provider lookup per handshake. */
+    private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private CordovaApproovHttpPinStore() {
+    }
+
+    /**
+     * Set the overlap window during which a replaced or invalidated pin
+     * remains accepted. A window of zero only accepts the current pin.
+     *
+     * @param millis The overlap window in milliseconds.
+     */
+    static void setOverlapMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Approov pin overlap window must not be negative");
+        }
+        overlapMillis = millis;
+    }
+
+    /**
+     * Compute the SHA-256 digest of a certificate's SubjectPublicKeyInfo.
+     *
+     * @param cert The certificate to compute the digest for.
+     * @return the SHA-256 digest of the DER encoded public key.
+     */
+    static byte[] spkiDigest(Certificate cert) {
+        return sha256.get().digest(cert.getPublicKey().getEncoded());
+    }
+
+    /**
+     * Parse a DER encoded certificate and compute the SHA-256 digest of
+     * its SubjectPublicKeyInfo.
+     *
+     * @param certBytes The DER encoded certificate.
+     * @return the SHA-256 digest of the DER encoded public key.
+     * @throws CertificateException if the certificate cannot be parsed.
+     */
+    static byte[] spkiDigest(byte[] certBytes) throws CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        return spkiDigest(cf.generateCertificate(new ByteArrayInputStream(certBytes)));
+    }
+
+    /**
+     * Get the pinned certificate for a hostname. The certificate
+     * provided by the Approov SDK is only parsed if it differs from the
+     * one seen previously for the hostname. If neither the SDK nor the
+     * store has a certificate for the hostname, a token fetch is done
+     * to obtain one, unless the circuit breaker for the hostname is
+     * open. If the SDK provides a different certificate, the
+     * previous pin is retained for the overlap window.
+     *
+     * @param hostname Name of the host the certificate is pinned for.
+     * @return the pinned certificate or null if none could be obtained.
+     * @throws CertificateException if the certificate cannot be parsed.
+     */
+    static PinnedCert getPin(String hostname) throws CertificateException {
+        PinnedCert pinnedCert = pinnedCerts.get(hostname);
+        if (pinnedCert != null && pinnedCert.previousExpiresAtMillis != 0
+                && System.currentTimeMillis() >= pinnedCert.previousExpiresAtMillis) {
+            // Stop accepting the previous pin once its overlap window has ended
+            pinnedCert = createPin(hostname, pinnedCert.certBytes, pinnedCert.spkiDigest);
+            pinnedCerts.put(hostname, pinnedCert);
+            version.incrementAndGet();
+        }
+
+        // Check if we have the cert for the hostname in the sdk cache
+        byte[] certBytes = ApproovAttestation.shared().getCert(hostname);
+        if (certBytes == null) {
+            // The sdk cache may have been flushed because of a failure on another host
+            if (pinnedCert != null) {
+                return pinnedCert;
+            }
+
+            // Do the token fetch that we must have missed previously, shared with any fetch in progress for the
+            // hostname. If the fetch failed or the circuit breaker is open then we give up.
+            if (!CordovaApproovHttpUtil.fetchApproovTokenForCert(hostname)) {
+                return null;
+            }
+
+            // This should always work now.
+            certBytes = ApproovAttestation.shared().getCert(hostname);
+            if (certBytes == null) {
+                return null;
+            }
+        }
+
+        if (pinnedCert != null && (pinnedCert.certBytes == certBytes
+                || Arrays.equals(pinnedCert.certBytes, certBytes))) {
+            return pinnedCert;
+        }
+
+        // Convert bytes into cert and reduce it to its public key digest
+        byte[] spkiDigest = spkiDigest(certBytes);
+        boolean isReplaced = pinnedCert != null;
+        if (isReplaced) {
+            retire(hostname, pinnedCert);
+        }
+        pinnedCert = createPin(hostname, certBytes, spkiDigest);
+        pinnedCerts.put(hostname, pinnedCert);
+        version.incrementAndGet();
+        if (isReplaced) {
+            // Sessions checked against the previous pin must be checked again
+            CordovaApproovHttpPinVerdictCache.evict(hostname);
+        }
+        return pinnedCert;
+    }
+
+    /**
+     * Get the version of the store's content, which changes whenever a
+     * pin is added, replaced or removed.
+     *
+     * @return the version.
+     */
+    static int getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Get a copy of all pins, e.g. to persist them.
+     *
+     * @return the pins by hostname.
+     */
+    static Map<String, PinnedCert> getPins() {
+        return new HashMap<String, PinnedCert>(pinnedCerts);
+    }
+
+    /**
+     * Restore a pin persisted previously, unless a pin for the hostname
+     * has already been obtained. The public key digest is computed from
+     * the certificate rather than taken from the persisted data.
+     *
+     * @param hostname Name of the host the certificate is pinned for.
+     * @param certBytes The DER encoded certificate.
+     * @throws CertificateException if the certificate cannot be parsed.
+     */
+    static void restorePin(String hostname, byte[] certBytes) throws CertificateException {
+        byte[] spkiDigest = spkiDigest(certBytes);
+        if (pinnedCerts.putIfAbsent(hostname, createPin(hostname, certBytes, spkiDigest)) == null) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Create a pin for a hostname, accepting the previous pin for the
+     * hostname if it is different and its overlap window has not ended.
+     *
+     * @param hostname Name of the host the certificate is pinned for.
+     * @param certBytes The DER encoded certificate.
+     * @param spkiDigest The SHA-256 digest of the certificate's public key.
+     * @return the pin.
+     */
+    private static PinnedCert createPin(String hostname, byte[] certBytes, byte[] spkiDigest) {
+        Set<ByteBuffer> acceptedDigests = new HashSet<ByteBuffer>();
+        acceptedDigests.add(ByteBuffer.wrap(spkiDigest));
+        long previousExpiresAtMillis = 0;
+        PreviousPin previousPin = previousPins.get(hostname);
+        if (previousPin != null) {
+            if (System.currentTimeMillis() >= previousPin.expiresAtMillis) {
+                previousPins.remove(hostname, previousPin);
+            } else if (!Arrays.equals(previousPin.spkiDigest, spkiDigest)) {
+                acceptedDigests.add(ByteBuffer.wrap(previousPin.spkiDigest));
+                previousExpiresAtMillis = previousPin.expiresAtMillis;
+            }
+        }
+        return new PinnedCert(certBytes, spkiDigest, Collections.unmodifiableSet(acceptedDigests),
+                previousExpiresAtMillis);
+    }
+
+    /**
+     * Retain a pin that is being replaced or invalidated as the previous
+     * pin for its hostname until the overlap window ends.
+     *
+     * @param hostname Name of the host the certificate was pinned for.
+     * @param pinnedCert The pin being replaced or invalidated.
+     */
+    private static void retire(String hostname, PinnedCert pinnedCert) {
+        long millis = overlapMillis;
+        if (millis > 0) {
+            previousPins.put(hostname, new PreviousPin(pinnedCert.spkiDigest, System.currentTimeMillis() + millis));
+        }
+    }
+
+    /**
+     * Invalidate the pin for a single hostname, e.g. because the host
+     * failed the pin check. The cached token for the host is discarded
+     * and the SDK cache is flushed so that the next request to the host
+     * fetches a fresh certificate. Cached pin check verdicts for the
+     * host are discarded and the invalidated pin becomes the previous
+     * pin. The pins of all other hosts remain available from the store.
+     *
+     * @param hostname Name of the host whose pin is invalidated.
+     */
+    static void invalidate(String hostname) {
+        PinnedCert pinnedCert = pinnedCerts.remove(hostname);
+        if (pinnedCert != null) {
+            retire(hostname, pinnedCert);
+            version.incrementAndGet();
+        }
+        CordovaApproovHttpPinVerdictCache.evict(hostname);
+        CordovaApproovHttpUtil.evictCachedToken(hostname);
+        ApproovAttestation.shared().clearCerts();
+        CordovaApproovHttpMetrics.increment(hostname, CordovaApproovHttpMetrics.Counter.CERT_CACHE_FLUSHES);
+    }
+
+}
@@ -0,0 +1,140 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpPinVerdictCache.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.security.cert.Certificate;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.HostnameVerifier;
+
+/**
+ * Bounded cache of successful pin checks per TLS session, so that
+ * connections resuming a session that has already been verified skip
+ * the delegate verifier and the pin comparison.
+ *
+ * A verdict is only reused for the same hostname, session id, leaf
+ * certificate and delegate verifier, and only as long as the pin it
+ * was checked against is still the current pin for the hostname:
+ * verdicts become stale as soon as the pin store replaces or
+ * invalidates the pin.
+ */
+final class CordovaApproovHttpPinVerdictCache {
+
+    /** Maximum number of cached verdicts. */
+    static final int MAX_ENTRIES = 256;
+
+    /** A successful pin check of a TLS session. */
+    private static final class Verdict {
+        final String hostname;
+        final Certificate leafCert;
+        final HostnameVerifier delegate;
+        final CordovaApproovHttpPinStore.PinnedCert pinnedCert;
+
+        Verdict(String hostname, Certificate leafCert, HostnameVerifier delegate,
+                CordovaApproovHttpPinStore.PinnedCert pinnedCert) {
+            this.hostname = hostname;
+            this.leafCert = leafCert;
+            this.delegate = delegate;
+            this.pinnedCert = pinnedCert;
+        }
+    }
+
+    /** Verdicts keyed by hostname and session id. */
+    private static final ConcurrentMap<String, Verdict> verdicts = new ConcurrentHashMap<String, Verdict>();
+
+    private CordovaApproovHttpPinVerdictCache() {
+    }
+
+    /**
+     * Build the cache key for a TLS session to a host.
+     *
+     * @param hostname Name of the host the session is connected to.
+     * @param sessionId Id of the TLS session.
+     * @return the cache key or null if the session has no id and
+     *         therefore cannot be cached.
+     */
+    static String key(String hostname, byte[] sessionId) {
+        if (sessionId == null || sessionId.length == 0) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(hostname.length() + 1 + sessionId.length * 2);
+        key.append(hostname).append('/');
+        for (byte b : sessionId) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Get the pin a TLS session has already been checked against
+     * successfully. The verdict still has to be confirmed by comparing
+     * the pin with the current pin for the host.
+     *
+     * @param key The cache key of the session.
+     * @param leafCert The leaf certificate presented in the session.
+     * @param delegate The delegate verifier applied before the pin check.
+     * @return the pin the session was checked against or null if no
+     *         matching verdict is cached.
+     */
+    static CordovaApproovHttpPinStore.PinnedCert getVerifiedPin(String key, Certificate leafCert,
+            HostnameVerifier delegate) {
+        Verdict verdict = verdicts.get(key);
+        if (verdict == null || verdict.delegate != delegate
+                || (verdict.leafCert != leafCert && !verdict.leafCert.equals(leafCert))) {
+            return null;
+        }
+        return verdict.pinnedCert;
+    }
+
+    /**
+     * Record that a TLS session has passed the pin check. If the cache
+     * is full, an arbitrary verdict is evicted first.
+     *
+     * @param key The cache key of the session.
+     * @param hostname Name of the host the session is connected to.
+     * @param leafCert The leaf certificate presented in the session.
+     * @param delegate The delegate verifier applied before the pin check.
+     * @param pinnedCert The pin the leaf certificate was checked against.
+     */
+    static void put(String key, String hostname, Certificate leafCert, HostnameVerifier delegate,
+            CordovaApproovHttpPinStore.PinnedCert pinnedCert) {
+        if (verdicts.size() >= MAX_ENTRIES) {
+            Iterator<String> keys = verdicts.keySet().iterator();
+            if (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        verdicts.put(key, new Verdict(hostname, leafCert, delegate, pinnedCert));
+    }
+
+    /**
+     * Discard all verdicts for a hostname, e.g. because its pin has
+     * been replaced or invalidated.
+     *
+     * @param hostname Name of the host whose verdicts are discarded.
+     */
+    static void evict(String hostname) {
+        Iterator<Verdict> iterator = verdicts.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().hostname.equals(hostname)) {
+                iterator.remove();
+            }
+        }
+    }
+
+}
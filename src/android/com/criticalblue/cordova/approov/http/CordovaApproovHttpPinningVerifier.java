@@ -15,16 +15,13 @@
 
 package com.criticalblue.cordova.approov.http;
 
-import com.criticalblue.attestationlibrary.ApproovAttestation;
-
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLException;
 
-import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 
 /**
  * Inspired by “Android Security: SSL Pinning” by Matthew Dolan
@@ -61,65 +58,112 @@ public final class CordovaApproovHttpPinningVerifier implements HostnameVerifier
     }
 
     /**
-     * Check the Approov SDK cached cert for this hostname
-     * against the provided Leaf Cert.
+     * Check the pinned cert for this hostname against the provided
+     * Leaf Cert. The certificates are compared by the SHA-256 digests
+     * of their public keys. During certificate rotations, the previous
+     * pin and any backup pins configured for the host are accepted too.
      *
      * @param hostname Name of the host we are checking the cert for.
      * @param leafCert The leaf certificate of the chain provided by the
      *                  host we are connecting to. Typically this is the 0th
      *                  element it the certificate array.
+     * @param verdictKey The key under which a successful check of the
+     *                  TLS session is cached, or null if it cannot be
+     *                  cached.
      * @return true if the the certificates match, false otherwise.
      */
-    private boolean checkDynamicPinning(String hostname, Certificate leafCert) {
-
-        // Check if we have the cert for the hostname in the sdk cache
-        if (ApproovAttestation.shared().getCert(hostname) == null) {
-            // Do the token fetch that we must have missed previously.
-            ApproovAttestation.AttestationResult result = ApproovAttestation.shared()
-                    .fetchApproovTokenAndWait(hostname).getResult();
-            // If the fetch failed then we give up
-            if (result == ApproovAttestation.AttestationResult.FAILURE) {
+    private boolean checkDynamicPinning(String hostname, Certificate leafCert, String verdictKey) {
+        try {
+            // Get the pin for the hostname from the pin store, backed by the sdk cache
+            CordovaApproovHttpPinStore.PinnedCert pinnedCert = CordovaApproovHttpPinStore.getPin(hostname);
+            if (pinnedCert == null) {
                 return false;
             }
-        }
 
-        // This should always work now.
-        byte[] certBytes = ApproovAttestation.shared().getCert(hostname);
-        if (certBytes == null) {
-            return false;
-        }
-
-        // Convert bytes into cert for comparison
-        try {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            Certificate cert = cf.generateCertificate(new ByteArrayInputStream(certBytes));
-
-            if (cert.equals(leafCert)) {
+            // Accept the pin, the previous pin during its overlap window and the backup pins configured for the host
+            byte[] leafDigest = CordovaApproovHttpPinStore.spkiDigest(leafCert);
+            if (pinnedCert.accepts(leafDigest) || CordovaApproovHttpUtil.isBackupPin(hostname, leafDigest)) {
+                // Only the verdict for the current pin is cached, the other pins are accepted temporarily
+                if (verdictKey != null && MessageDigest.isEqual(pinnedCert.spkiDigest, leafDigest)) {
+                    CordovaApproovHttpPinVerdictCache.put(verdictKey, hostname, leafCert, delegate, pinnedCert);
+                }
                 return true;
             } else {
-                // We need to flush the cert cache so that connections to other hosts don't fail just because this one failed the cert check
-                ApproovAttestation.shared().clearCerts();
+                // Only invalidate the pin for this host so that connections to other hosts are not affected
+                CordovaApproovHttpPinStore.invalidate(hostname);
                 return false;
             }
 
         } catch (CertificateException e) {
-            // We need to flush the cert cache so that connections to other hosts don't fail just because this one failed to get a cert
-            ApproovAttestation.shared().clearCerts();
+            // Only invalidate the pin for this host so that connections to other hosts are not affected
+            CordovaApproovHttpPinStore.invalidate(hostname);
             return false;
         }
+    }
 
-
+    /**
+     * Check whether the TLS session has already passed the delegate
+     * verifier and the pin check against the current pin for this
+     * hostname, as is the case for resumed sessions.
+     *
+     * @param hostname Name of the host we are checking the cert for.
+     * @param leafCert The leaf certificate presented in the session.
+     * @param verdictKey The key under which the session is cached.
+     * @return true if the session has already been verified, false
+     *         otherwise.
+     */
+    private boolean isVerifiedSession(String hostname, Certificate leafCert, String verdictKey) {
+        CordovaApproovHttpPinStore.PinnedCert verifiedPin =
+                CordovaApproovHttpPinVerdictCache.getVerifiedPin(verdictKey, leafCert, delegate);
+        if (verifiedPin == null) {
+            return false;
+        }
+        try {
+            // The verdict only holds as long as the pin it was checked against is current
+            return CordovaApproovHttpPinStore.getPin(hostname) == verifiedPin;
+        } catch (CertificateException e) {
+            return false;
+        }
     }
 
     @Override
     public boolean verify(String hostname, SSLSession session) {
-        if (delegate.verify(hostname, session)) try {
-            // Assume the leaf cert is at element 0 in the getPeerCertificates() array.
-            return checkDynamicPinning(hostname, session.getPeerCertificates()[0]);
-        } catch (SSLException e) {
-            throw new RuntimeException(e);
-        }
+        long startNanos = CordovaApproovHttpMetrics.startTimer();
+        boolean isVerified = false;
+        try {
+            // Skip verification of resumed sessions that have already been verified
+            Certificate leafCert = null;
+            String verdictKey = CordovaApproovHttpPinVerdictCache.key(hostname, session.getId());
+            if (verdictKey != null) try {
+                leafCert = session.getPeerCertificates()[0];
+                if (isVerifiedSession(hostname, leafCert, verdictKey)) {
+                    CordovaApproovHttpMetrics.increment(hostname,
+                        CordovaApproovHttpMetrics.Counter.PIN_CHECK_CACHE_HITS);
+                    isVerified = true;
+                    return true;
+                }
+            } catch (SSLException e) {
+                // Leave it to the delegate to reject the session
+                leafCert = null;
+            }
+
+            if (delegate.verify(hostname, session)) try {
+                // Assume the leaf cert is at element 0 in the getPeerCertificates() array.
+                if (leafCert == null) {
+                    leafCert = session.getPeerCertificates()[0];
+                }
+                isVerified = checkDynamicPinning(hostname, leafCert, verdictKey);
+                return isVerified;
+            } catch (SSLException e) {
+                throw new RuntimeException(e);
+            }
 
-        return false;
+            return false;
+        } finally {
+            CordovaApproovHttpMetrics.stopTimer(hostname, CordovaApproovHttpMetrics.Timer.PIN_CHECK, startNanos);
+            if (!isVerified) {
+                CordovaApproovHttpMetrics.increment(hostname, CordovaApproovHttpMetrics.Counter.PIN_CHECK_FAILURES);
+            }
+        }
     }
 }
@@ -19,15 +19,28 @@ import com.criticalblue.attestationlibrary.ApproovAttestation;
 import com.criticalblue.attestationlibrary.ApproovConfig;
 import com.criticalblue.cordova.approov.http.CordovaApproovHttpUtil;
 
+import android.content.Context;
+import android.content.pm.PackageManager;
+
 import com.synconset.cordovahttp.CordovaHttpPlugin;
 
+import java.io.File;
+import java.io.IOException;
+
 import java.net.MalformedURLException;
 import java.net.URL;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -41,26 +54,227 @@ import org.json.JSONObject;
     // Tag for logging
     private static final String TAG = "CordovaApproovHttpPlugin";
 
+    // Lock guarding the one-time initialization of the Approov library
+    private static final Object initializationLock = new Object();
+
     // Flag indicating whether the Approov library has been initialized. This can only be done once in Android.
+    // Synchronization provided by initializationLock.
     private static boolean isApproovInitialized = false;
 
-    // Determine whether the Approov library has been initialized
-    private static synchronized boolean isApproovInitialized() {
-        return isApproovInitialized;
-    }
+    // Configurations requested from JavaScript, applied in the order they were requested
+    private static final Queue<Runnable> pendingConfigurations = new ConcurrentLinkedQueue<Runnable>();
 
-    // Set the flag that indicates whether the Approov library has been initialized
-    private static synchronized void setApproovInitialized() {
-        isApproovInitialized = true;
+    // Lock ensuring that configurations are applied one at a time
+    private static final Object configurationLock = new Object();
+
+    // Initialize the Approov library, unless it has already been initialized. Returns false if it had already been
+    // initialized, in which case the configuration is ignored.
+    private static boolean initializeApproov(ApproovConfig approovConfig)
+            throws IllegalArgumentException, MalformedURLException {
+        synchronized (initializationLock) {
+            if (isApproovInitialized) {
+                return false;
+            }
+            // Initialize Approov
+            ApproovAttestation.initialize(approovConfig);
+            isApproovInitialized = true;
+        }
+        CordovaApproovHttpUtil.setApproovReady();
+        return true;
     }
 
     // Ensure the Approov library has been initialized
     private static void ensureApproovInitialized(ApproovConfig approovConfig)
             throws IllegalArgumentException, MalformedURLException {
-        if (!isApproovInitialized()) {
-            // Initialize Approov
-            ApproovAttestation.initialize(approovConfig);
-            setApproovInitialized();
+        initializeApproov(approovConfig);
+    }
+
+    // Convert an optional JSON array of strings to a list, empty if the array is absent
+    private static List<String> getStringList(JSONArray array) throws JSONException {
+        List<String> list = new ArrayList<String>();
+        if (array != null) {
+            for (int i = 0; i < array.length(); i += 1) {
+                list.add(array.getString(i));
+            }
+        }
+        return list;
+    }
+
+    // Prefetch Approov tokens and pins for the given domain URLs in parallel on the Cordova thread pool. If a callback
+    // context is given, the result for each domain is reported to it as soon as the domain's prefetch completes.
+    private void prefetch(final List<String> domains, final CallbackContext callbackContext)
+            throws MalformedURLException {
+        // Parse all URLs first to report malformed URLs before any prefetch is started
+        final List<URL> urls = new ArrayList<URL>();
+        for (String domain : domains) {
+            urls.add(new URL(domain));
+        }
+        if (urls.isEmpty() && callbackContext != null) {
+            callbackContext.success();
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(urls.size());
+        for (int i = 0; i < urls.size(); i += 1) {
+            final String domain = domains.get(i);
+            final URL url = urls.get(i);
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean isPrefetched;
+                    try {
+                        isPrefetched = CordovaApproovHttpUtil.prefetch(url);
+                    } catch (RuntimeException e) {
+                        // Report the failure so that the result for every domain is delivered
+                        isPrefetched = false;
+                    }
+                    int remainingDomains = remaining.decrementAndGet();
+                    if (callbackContext != null) {
+                        try {
+                            JSONObject result = new JSONObject();
+                            result.put("domain", domain);
+                            result.put("isPrefetched", isPrefetched);
+                            result.put("remaining", remainingDomains);
+                            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+                            pluginResult.setKeepCallback(remainingDomains > 0);
+                            callbackContext.sendPluginResult(pluginResult);
+                        } catch (JSONException e) {
+                            callbackContext.error("Error reporting Approov prefetch: " + e.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // Get the file holding the snapshot of protected domains and pinned certificates
+    private File getSnapshotFile() {
+        Context context = cordova.getActivity().getApplicationContext();
+        return new File(context.getFilesDir(), CordovaApproovHttpSnapshot.FILE_NAME);
+    }
+
+    // Get the app version a snapshot is tagged with: the time the app was last installed or updated
+    private long getAppVersion() {
+        Context context = cordova.getActivity().getApplicationContext();
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    // Save a snapshot of the protected domains and pinned certificates in the background
+    private void saveSnapshot() {
+        final File file = getSnapshotFile();
+        final long appVersion = getAppVersion();
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CordovaApproovHttpSnapshot.save(file, appVersion);
+                } catch (IOException e) {
+                    // The snapshot only speeds up the next app start, saving is retried when the app is paused
+                }
+            }
+        });
+    }
+
+    // Apply a configuration provided by JavaScript
+    private void configure(JSONArray args, CallbackContext callbackContext) {
+        // Initialize Approov using the provided configuration
+        try {
+            JSONObject config = args.getJSONObject(0);
+            ApproovConfig approovConfig =
+                ApproovConfig.getDefaultConfig(this.cordova.getActivity().getApplicationContext());
+            // Flag indicating whether ApproovAttestation.initialize() needs to be called. This is required for
+            // configuration items that are managed by the Approov library, as opposed to managed by the plugin.
+            boolean needsInitialization = false;
+            if (config.has("customerName")) {
+                approovConfig.setCustomerName(config.getString("customerName"));
+                needsInitialization = true;
+            }
+            if (config.has("networkTimeout")) {
+                approovConfig.setNetworkTimeout(config.getInt("networkTimeout"));
+                needsInitialization = true;
+            }
+            if (config.has("attestationURL")) {
+                approovConfig.setAttestationURL(new URL(config.getString("attestationURL")));
+                needsInitialization = true;
+            }
+            if (config.has("failoverURL")) {
+                approovConfig.setFailoverURL(new URL(config.getString("failoverURL")));
+                needsInitialization = true;
+            }
+            // Error to report once the remaining configuration has been applied
+            String initializationError = null;
+            if (needsInitialization && !initializeApproov(approovConfig)) {
+                initializationError = "Approov library initialization must only be performed once for "
+                    + "\"customerName\", \"networkTimeout\", \"attestationURL\" and \"failoverURL\"";
+            }
+            if (config.has("tokenPayloadValue")) {
+                ensureApproovInitialized(approovConfig);
+                ApproovAttestation.shared().setTokenPayloadValue(config.getString("tokenPayloadValue"));
+                // Cached tokens carry the previous payload value and must not be used any longer
+                CordovaApproovHttpUtil.clearTokenCache();
+            }
+            if (config.has("tokenExpiryMargin")) {
+                CordovaApproovHttpUtil.setTokenExpiryMargin(config.getLong("tokenExpiryMargin"));
+            }
+            if (config.has("tokenRefreshDomains")) {
+                CordovaApproovHttpUtil.setTokenRefreshDomains(config.getInt("tokenRefreshDomains"));
+            }
+            if (config.has("pinOverlapWindow")) {
+                CordovaApproovHttpUtil.setPinOverlapWindow(config.getLong("pinOverlapWindow"));
+            }
+            if (config.has("transport")) {
+                CordovaApproovHttpUtil.setTransport(config.getString("transport"));
+            }
+            if (config.has("circuitBreakerThreshold")) {
+                CordovaApproovHttpUtil.setCircuitBreakerThreshold(config.getInt("circuitBreakerThreshold"));
+            }
+            if (config.has("circuitBreakerCooldown") || config.has("circuitBreakerMaxCooldown")) {
+                long cooldown = config.optLong("circuitBreakerCooldown",
+                    CordovaApproovHttpCircuitBreaker.DEFAULT_COOLDOWN_MILLIS / 1000);
+                long maxCooldown = config.optLong("circuitBreakerMaxCooldown",
+                    CordovaApproovHttpCircuitBreaker.DEFAULT_MAX_COOLDOWN_MILLIS / 1000);
+                CordovaApproovHttpUtil.setCircuitBreakerCooldown(cooldown, Math.max(cooldown, maxCooldown));
+            }
+            List<String> protectedURLs = new ArrayList<String>();
+            if (config.has("protectedDomains")) {
+                ensureApproovInitialized(approovConfig);
+                JSONArray protectedDomains = config.getJSONArray("protectedDomains");
+                for (int i = 0; i < protectedDomains.length() ; i += 1) {
+                    JSONObject protectedDomain = protectedDomains.getJSONObject(i);
+                    String protectedURL = protectedDomain.getString("protectedDomainURL");
+                    protectedURLs.add(protectedURL);
+                    boolean isMITMProtected = protectedDomain.getBoolean("isMITMProtectedDomain");
+                    List<String> includePaths = getStringList(protectedDomain.optJSONArray("includePaths"));
+                    List<String> excludePaths = getStringList(protectedDomain.optJSONArray("excludePaths"));
+                    List<String> backupPins = getStringList(protectedDomain.optJSONArray("backupPins"));
+                    CordovaApproovHttpUtil.addApproovProtectedDomain(new URL(protectedURL), isMITMProtected,
+                        includePaths, excludePaths, backupPins);
+                }
+            }
+            if (!protectedURLs.isEmpty()) {
+                // Persist the protected domains for the next app start
+                saveSnapshot();
+            }
+            if (config.optBoolean("prefetch", false)) {
+                // Warm up tokens and pins for the configured domains in the background
+                prefetch(protectedURLs, null);
+            }
+            if (initializationError != null) {
+                callbackContext.error(initializationError);
+            } else {
+                callbackContext.success();
+            }
+        } catch (JSONException e) {
+            callbackContext.error("Error (invalid JSON) initializing Approov: " + e.getMessage());
+        } catch (MalformedURLException e) {
+            callbackContext.error("Error (malformed URL) initializing Approov: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            callbackContext.error("Error initializing Approov: " + e.getMessage());
+        } catch (Exception e) {
+            callbackContext.error("Error initializing Approov: " + e.getMessage());
         }
     }
 
@@ -68,7 +282,35 @@ import org.json.JSONObject;
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
+        // Restore the pinned certificates of the previous app start before any request is made. The restored protected
+        // domains are only protected once the Approov library has been initialized.
+        CordovaApproovHttpSnapshot.load(getSnapshotFile(), getAppVersion());
         CordovaHttpPlugin.addRequestInterceptor(CordovaApproovHttpUtil.approovProtect);
+        // The app is in the foreground while the plugin is initialized
+        CordovaApproovHttpUtil.startTokenRefresh();
+    }
+
+    // Stop refreshing tokens while the app is in the background and persist the pinned certificates obtained while it
+    // was in the foreground
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+        CordovaApproovHttpUtil.stopTokenRefresh();
+        saveSnapshot();
+    }
+
+    // Refresh tokens that have expired or are about to expire while the app was in the background
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+        CordovaApproovHttpUtil.startTokenRefresh();
+    }
+
+    // Stop refreshing tokens
+    @Override
+    public void onDestroy() {
+        CordovaApproovHttpUtil.stopTokenRefresh();
+        super.onDestroy();
     }
 
     // Execute commands from JavaScript
@@ -79,14 +321,25 @@ import org.json.JSONObject;
             "attestationURL": "https://me.approovr.io",
             "failoverURL": "https://approovfo.io/token/me/index.html",
             "tokenPayloadValue": "A user-defined string",
+            "tokenExpiryMargin": 30,
+            "tokenRefreshDomains": 8,
+            "pinOverlapWindow": 3600,
+            "transport": "okhttp",
+            "circuitBreakerThreshold": 3,
+            "circuitBreakerCooldown": 5,
+            "circuitBreakerMaxCooldown": 300,
+            "prefetch": true,
             "protectedDomains": [
                 {
                     "protectedDomainURL": "https://my.domain1.com/anEndpoint",
-                    "isMITMProtectedDomain": "true"
+                    "isMITMProtectedDomain": "true",
+                    "backupPins": ["47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU="]
                 }
                 {
                     "protectedDomainURL": "https://my.domain2.com/anotherEndpoint",
-                    "isMITMProtectedDomain": "false"
+                    "isMITMProtectedDomain": "false",
+                    "includePaths": ["/api"],
+                    "excludePaths": ["/api/health"]
                 }
             ]
         }
@@ -95,64 +348,52 @@ import org.json.JSONObject;
     public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext)
             throws JSONException {
         if (action.equals("approovConfigure")) {
-            // Initialize Approov using the provided configuration
-            try {
-                JSONObject config = args.getJSONObject(0);
-                ApproovConfig approovConfig =
-                    ApproovConfig.getDefaultConfig(this.cordova.getActivity().getApplicationContext());
-                // Flag indicating whether ApproovAttestation.initialize() needs to be called. This is required for
-                // configuration items that are managed by the Approov library, as opposed to managed by the plugin.
-                boolean needsInitialization = false;
-                if (config.has("customerName")) {
-                    approovConfig.setCustomerName(config.getString("customerName"));
-                    needsInitialization = true;
-                }
-                if (config.has("networkTimeout")) {
-                    approovConfig.setNetworkTimeout(config.getInt("networkTimeout"));
-                    needsInitialization = true;
-                }
-                if (config.has("attestationURL")) {
-                    approovConfig.setAttestationURL(new URL(config.getString("attestationURL")));
-                    needsInitialization = true;
-                }
-                if (config.has("failoverURL")) {
-                    approovConfig.setFailoverURL(new URL(config.getString("failoverURL")));
-                    needsInitialization = true;
-                }
-                if (needsInitialization) {
-                    if (isApproovInitialized()) {
-                        callbackContext.error("Approov library initialization must only be performed once for "
-                            + "\"customerName\", \"networkTimeout\", \"attestationURL\" and \"failoverURL\"");
-                    }
-                    else {
-                        ApproovAttestation.initialize(approovConfig);
-                        setApproovInitialized();
+            // Apply the configuration in the background, in order with other configurations, and report the result
+            // through the callback. Requests wait for a configuration that adds or modifies protected domains to be
+            // applied, so that they are not sent unprotected.
+            JSONObject config = args.optJSONObject(0);
+            final boolean isChangingDomains = config != null && config.has("protectedDomains");
+            if (isChangingDomains) {
+                CordovaApproovHttpUtil.beginConfiguration();
+            }
+            pendingConfigurations.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        configure(args, callbackContext);
+                    } finally {
+                        if (isChangingDomains) {
+                            CordovaApproovHttpUtil.endConfiguration();
+                        }
                     }
                 }
-                if (config.has("tokenPayloadValue")) {
-                    ensureApproovInitialized(approovConfig);
-                    ApproovAttestation.shared().setTokenPayloadValue(config.getString("tokenPayloadValue"));
-                }
-                if (config.has("protectedDomains")) {
-                    ensureApproovInitialized(approovConfig);
-                    JSONArray protectedDomains = config.getJSONArray("protectedDomains");
-                    for (int i = 0; i < protectedDomains.length() ; i += 1) {
-                        JSONObject protectedDomain = protectedDomains.getJSONObject(i);
-                        String protectedURL = protectedDomain.getString("protectedDomainURL");
-                        boolean isMITMProtected = protectedDomain.getBoolean("isMITMProtectedDomain");
-                        CordovaApproovHttpUtil.addApproovProtectedDomain(new URL(protectedURL), isMITMProtected);
+            });
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (configurationLock) {
+                        Runnable configuration;
+                        while ((configuration = pendingConfigurations.poll()) != null) {
+                            configuration.run();
+                        }
                     }
                 }
-                callbackContext.success();
+            });
+        } else if (action.equals("approovPrefetch")) {
+            // Prefetch Approov tokens and pins for the provided protected domain URLs
+            try {
+                prefetch(getStringList(args.getJSONArray(0)), callbackContext);
             } catch (JSONException e) {
-                callbackContext.error("Error (invalid JSON) initializing Approov: " + e.getMessage());
+                callbackContext.error("Error (invalid JSON) prefetching Approov tokens: " + e.getMessage());
             } catch (MalformedURLException e) {
-                callbackContext.error("Error (malformed URL) initializing Approov: " + e.getMessage());
-            } catch (IllegalArgumentException e) {
-                callbackContext.error("Error initializing Approov: " + e.getMessage());
-            } catch (Exception e) {
-                callbackContext.error("Error initializing Approov: " + e.getMessage());
+                callbackContext.error("Error (malformed URL) prefetching Approov tokens: " + e.getMessage());
             }
+        } else if (action.equals("approovGetCircuitBreakerStates")) {
+            // Report the circuit breaker states of all domains for which token fetches have failed
+            callbackContext.success(CordovaApproovHttpUtil.getCircuitBreakerStates());
+        } else if (action.equals("approovGetMetrics")) {
+            // Report the plugin's metrics collected since the previous call and reset them
+            callbackContext.success(CordovaApproovHttpUtil.getMetrics());
         } else {
             return false;
         }
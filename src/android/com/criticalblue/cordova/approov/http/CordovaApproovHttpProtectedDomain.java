@@ -0,0 +1,64 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpProtectedDomain.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable configuration of an Approov protected domain (or wildcard domain pattern): the protection policy of the
+ * domain, the path-prefix rules selecting the requests the policy applies to and the backup pins accepted for the
+ * domain in addition to the pins provided by the Approov SDK.
+ */
+final class CordovaApproovHttpProtectedDomain {
+
+    // Protection policy for requests whose path is included by the path rules
+    final CordovaApproovHttpDomainPolicy policy;
+
+    // Path-prefix rules selecting the protected requests
+    final CordovaApproovHttpPathRules pathRules;
+
+    // SHA-256 digests of the public keys of backup certificates accepted by the pin check
+    final Set<ByteBuffer> backupPins;
+
+    CordovaApproovHttpProtectedDomain(CordovaApproovHttpDomainPolicy policy, CordovaApproovHttpPathRules pathRules,
+            Set<ByteBuffer> backupPins) {
+        this.policy = policy;
+        this.pathRules = pathRules;
+        this.backupPins = backupPins;
+    }
+
+    // Resolve the protection policy for a request path
+    CordovaApproovHttpDomainPolicy resolve(String path) {
+        return pathRules.isIncluded(path) ? policy : CordovaApproovHttpDomainPolicy.UNPROTECTED;
+    }
+
+    // Merge with an update of the configuration. MITM protection and path-prefix rules are never narrowed, backup
+    // pins are added to the existing ones.
+    CordovaApproovHttpProtectedDomain merge(CordovaApproovHttpProtectedDomain update) {
+        CordovaApproovHttpDomainPolicy mergedPolicy = policy.isMITMProtected() ? policy : update.policy;
+        Set<ByteBuffer> mergedBackupPins = backupPins;
+        if (!backupPins.containsAll(update.backupPins)) {
+            mergedBackupPins = new HashSet<ByteBuffer>(backupPins);
+            mergedBackupPins.addAll(update.backupPins);
+            mergedBackupPins = Collections.unmodifiableSet(mergedBackupPins);
+        }
+        return new CordovaApproovHttpProtectedDomain(mergedPolicy, pathRules.merge(update.pathRules),
+            mergedBackupPins);
+    }
+
+}
@@ -0,0 +1,189 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpRefreshScheduler.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background refresh of the Approov tokens and pinned certificates of the most recently used protected domains, so
+ * that requests do not need to wait for a token fetch when a cached token is about to expire or after the app has
+ * been in the background. Refreshing only runs while the app is in the foreground: it is started when the app is
+ * resumed, immediately refreshing all recently used domains, and stopped when the app is paused.
+ */
+final class CordovaApproovHttpRefreshScheduler {
+
+    // Default number of most recently used domains that are refreshed
+    static final int DEFAULT_MAX_DOMAINS = 8;
+
+    // Interval between checks for tokens that are about to expire
+    static final long REFRESH_INTERVAL_MILLIS = 15000;
+
+    // Time before a cached token stops being served at which it is refreshed, allowing for one missed check
+    static final long REFRESH_LEAD_MILLIS = 2 * REFRESH_INTERVAL_MILLIS;
+
+    // Time after its last use after which a domain is no longer refreshed
+    static final long MAX_IDLE_MILLIS = 600000;
+
+    // A recently used domain together with the URL of a request to it and the time it was last used
+    private static final class RecentDomain {
+        final URL url;
+        volatile long lastUsedMillis;
+
+        RecentDomain(URL url, long lastUsedMillis) {
+            this.url = url;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+
+    // Map of the most recently used domains
+    private final ConcurrentMap<String, RecentDomain> recentDomains = new ConcurrentHashMap<String, RecentDomain>();
+
+    // Number of most recently used domains that are refreshed
+    private volatile int maxDomains = DEFAULT_MAX_DOMAINS;
+
+    // Executor running the refresh while the app is in the foreground, null while it is in the background. Guarded by
+    // the scheduler's monitor.
+    private ScheduledExecutorService executor;
+
+    // Flag indicating whether the app is in the foreground. Guarded by the scheduler's monitor.
+    private boolean isForeground;
+
+    // Set the number of most recently used domains that are refreshed, 0 disables refreshing
+    void setMaxDomains(int maxDomains) {
+        if (maxDomains < 0) {
+            throw new IllegalArgumentException("Approov token refresh domain count must not be negative");
+        }
+        this.maxDomains = maxDomains;
+        trim();
+        synchronized (this) {
+            if (maxDomains == 0) {
+                stopExecutor();
+            } else if (isForeground) {
+                startExecutor();
+            }
+        }
+    }
+
+    // Record the use of a protected domain by a request to the URL
+    void recordUse(URL url) {
+        long now = System.currentTimeMillis();
+        String domain = url.getHost();
+        RecentDomain recentDomain = recentDomains.get(domain);
+        if (recentDomain != null) {
+            recentDomain.lastUsedMillis = now;
+            return;
+        }
+        if (maxDomains == 0) {
+            return;
+        }
+        recentDomains.putIfAbsent(domain, new RecentDomain(url, now));
+        trim();
+    }
+
+    // Start refreshing because the app has come to the foreground, refreshing all recently used domains immediately
+    synchronized void start() {
+        isForeground = true;
+        if (maxDomains > 0) {
+            startExecutor();
+        }
+    }
+
+    // Stop refreshing because the app has gone to the background. A refresh in progress is completed.
+    synchronized void stop() {
+        isForeground = false;
+        stopExecutor();
+    }
+
+    // Start the executor, unless it is running already
+    private void startExecutor() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ApproovTokenRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, 0, REFRESH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Stop the executor, letting a refresh in progress complete
+    private void stopExecutor() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    // Refresh the tokens and pins of all recently used domains whose cached token is about to expire
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        List<URL> urls = new ArrayList<URL>();
+        for (Map.Entry<String, RecentDomain> entry : recentDomains.entrySet()) {
+            if (now - entry.getValue().lastUsedMillis > MAX_IDLE_MILLIS) {
+                recentDomains.remove(entry.getKey(), entry.getValue());
+            } else {
+                urls.add(entry.getValue().url);
+            }
+        }
+        for (URL url : urls) {
+            synchronized (this) {
+                if (!isForeground) {
+                    return;
+                }
+            }
+            try {
+                CordovaApproovHttpUtil.refresh(url, REFRESH_LEAD_MILLIS);
+            } catch (RuntimeException e) {
+                // An exception must not cancel the periodic refresh, the domain is retried at the next check
+            }
+        }
+    }
+
+    // Evict the least recently used domains exceeding the maximum number of domains
+    private void trim() {
+        while (recentDomains.size() > maxDomains) {
+            Map.Entry<String, RecentDomain> leastRecentlyUsed = null;
+            for (Map.Entry<String, RecentDomain> entry : recentDomains.entrySet()) {
+                if (leastRecentlyUsed == null
+                        || entry.getValue().lastUsedMillis < leastRecentlyUsed.getValue().lastUsedMillis) {
+                    leastRecentlyUsed = entry;
+                }
+            }
+            if (leastRecentlyUsed == null) {
+                return;
+            }
+            recentDomains.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+        }
+    }
+
+}
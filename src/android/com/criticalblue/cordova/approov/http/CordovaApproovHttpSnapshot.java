@@ -0,0 +1,265 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpSnapshot.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent snapshot of the protected domains and the pinned certificates, so that they are available immediately
+ * when the app is started again, before the app's configuration has been applied and before any certificate has been
+ * fetched. Only public data is persisted, never tokens. The snapshot is a versioned binary file protected by a CRC32
+ * checksum and tagged with the app version; it is discarded if it is invalid or was written by another app version.
+ */
+final class CordovaApproovHttpSnapshot {
+
+    // Name of the snapshot file in the app's files directory
+    static final String FILE_NAME = "approov-http-snapshot.bin";
+
+    // File format identifier ("APHS") and version
+    private static final int MAGIC = 0x41504853;
+    private static final int VERSION = 2;
+
+    // Size of the header (magic, version, app version and payload length) and of the trailing checksum
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final int CHECKSUM_SIZE = 8;
+
+    // Maximum size of a snapshot file that is loaded
+    private static final int MAX_FILE_SIZE = 1024 * 1024;
+
+    // Size of a backup pin, the SHA-256 digest of a public key
+    private static final int PIN_SIZE = 32;
+
+    // Payload of the snapshot saved or loaded last, to skip saving an unchanged snapshot
+    private static byte[] lastPayload;
+
+    private CordovaApproovHttpSnapshot() {
+    }
+
+    // Save the protected domains and pinned certificates to the snapshot file, tagged with the app version. The file
+    // is replaced atomically, so that an interrupted save leaves the previous snapshot intact.
+    static synchronized void save(File file, long appVersion) throws IOException {
+        byte[] payload = writePayload();
+        if (Arrays.equals(payload, lastPayload) && file.exists()) {
+            return;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length + CHECKSUM_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(appVersion);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(checksum.getValue());
+        out.flush();
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try {
+            fileOut.write(bytes.toByteArray());
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Approov snapshot could not be written");
+        }
+        lastPayload = payload;
+    }
+
+    // Load the snapshot file with a single read and restore the protected domains and pinned certificates it holds. A
+    // snapshot that is invalid or was written by another app version is deleted. Returns whether a snapshot was
+    // restored.
+    static synchronized boolean load(File file, long appVersion) {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            byte[] bytes;
+            RandomAccessFile fileIn = new RandomAccessFile(file, "r");
+            try {
+                long length = fileIn.length();
+                if (length < HEADER_SIZE + CHECKSUM_SIZE || length > MAX_FILE_SIZE) {
+                    throw new IOException("Approov snapshot has invalid size");
+                }
+                bytes = new byte[(int) length];
+                fileIn.readFully(bytes);
+            } finally {
+                fileIn.close();
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != appVersion
+                    || in.readInt() != bytes.length - HEADER_SIZE - CHECKSUM_SIZE) {
+                throw new IOException("Approov snapshot is not compatible");
+            }
+            byte[] payload = new byte[bytes.length - HEADER_SIZE - CHECKSUM_SIZE];
+            in.readFully(payload);
+            CRC32 checksum = new CRC32();
+            checksum.update(payload);
+            if (in.readLong() != checksum.getValue()) {
+                throw new IOException("Approov snapshot checksum mismatch");
+            }
+            readPayload(payload);
+            lastPayload = payload;
+            return true;
+        } catch (IOException e) {
+            file.delete();
+        } catch (IllegalArgumentException e) {
+            file.delete();
+        }
+        return false;
+    }
+
+    // Serialize the protected domains followed by the pinned certificates
+    private static byte[] writePayload() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, CordovaApproovHttpProtectedDomain> protectedDomains = CordovaApproovHttpUtil.getProtectedDomains();
+        out.writeInt(protectedDomains.size());
+        for (Map.Entry<String, CordovaApproovHttpProtectedDomain> entry : protectedDomains.entrySet()) {
+            CordovaApproovHttpProtectedDomain protectedDomain = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeBoolean(protectedDomain.policy.isMITMProtected());
+            writeStrings(out, protectedDomain.pathRules.getIncludePrefixes());
+            writeStrings(out, protectedDomain.pathRules.getExcludePrefixes());
+            out.writeInt(protectedDomain.backupPins.size());
+            for (ByteBuffer backupPin : protectedDomain.backupPins) {
+                writeBytes(out, backupPin.array());
+            }
+        }
+        Map<String, CordovaApproovHttpPinStore.PinnedCert> pins = CordovaApproovHttpPinStore.getPins();
+        out.writeInt(pins.size());
+        for (Map.Entry<String, CordovaApproovHttpPinStore.PinnedCert> entry : pins.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeBytes(out, entry.getValue().certBytes);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Deserialize and restore the protected domains and pinned certificates. The whole payload is parsed before
+    // anything is restored, so that a corrupt payload is not restored partially. The public key digests of the pinned
+    // certificates are not persisted but computed from the certificates when they are restored.
+    private static void readPayload(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int domainCount = in.readInt();
+        List<String> domains = new ArrayList<String>();
+        List<CordovaApproovHttpProtectedDomain> protectedDomains = new ArrayList<CordovaApproovHttpProtectedDomain>();
+        for (int i = 0; i < domainCount; i += 1) {
+            String domain = in.readUTF();
+            if (!CordovaApproovHttpDomainTrie.isValidPattern(domain)) {
+                throw new IOException("Approov snapshot holds an invalid domain");
+            }
+            boolean isMITMProtected = in.readBoolean();
+            List<String> includePaths = readStrings(in);
+            List<String> excludePaths = readStrings(in);
+            int backupPinCount = in.readInt();
+            Set<ByteBuffer> backupPins = new HashSet<ByteBuffer>();
+            for (int j = 0; j < backupPinCount; j += 1) {
+                byte[] backupPin = readBytes(in);
+                if (backupPin.length != PIN_SIZE) {
+                    throw new IllegalArgumentException("Approov snapshot holds an invalid backup pin");
+                }
+                backupPins.add(ByteBuffer.wrap(backupPin));
+            }
+            domains.add(domain);
+            protectedDomains.add(new CordovaApproovHttpProtectedDomain(
+                CordovaApproovHttpDomainPolicy.forProtectedDomain(isMITMProtected),
+                CordovaApproovHttpPathRules.create(includePaths, excludePaths),
+                Collections.unmodifiableSet(backupPins)));
+        }
+        int pinCount = in.readInt();
+        List<String> hostnames = new ArrayList<String>();
+        List<byte[]> certs = new ArrayList<byte[]>();
+        for (int i = 0; i < pinCount; i += 1) {
+            hostnames.add(in.readUTF());
+            certs.add(readBytes(in));
+        }
+        if (in.available() != 0) {
+            throw new IOException("Approov snapshot has trailing data");
+        }
+
+        for (int i = 0; i < domains.size(); i += 1) {
+            CordovaApproovHttpUtil.addRestoredProtectedDomain(domains.get(i), protectedDomains.get(i));
+        }
+        for (int i = 0; i < hostnames.size(); i += 1) {
+            try {
+                CordovaApproovHttpPinStore.restorePin(hostnames.get(i), certs.get(i));
+            } catch (CertificateException e) {
+                // A certificate that cannot be parsed is not restored; the pin is fetched again when required
+            }
+        }
+    }
+
+    // Write a length-prefixed collection of strings
+    private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    // Read a length-prefixed list of strings
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Approov snapshot holds an invalid count");
+        }
+        List<String> strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i += 1) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    // Write a length-prefixed byte array
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Read a length-prefixed byte array
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Approov snapshot holds an invalid length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+}
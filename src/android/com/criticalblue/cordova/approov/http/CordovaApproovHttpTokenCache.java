@@ -0,0 +1,148 @@
+/**********************************************************************************************
+ * Project:     Approov
+ * File:        CordovaApproovHttpTokenCache.java
+ *
+ * Copyright(c) 2018 by CriticalBlue Ltd.
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ **********************************************************************************************/
+
+package com.criticalblue.cordova.approov.http;
+
+import android.util.Base64;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-memory cache of Approov tokens, keyed by domain, with one additional slot for the generic (non-URL-specific)
+ * token. Tokens are served from the cache until a safety margin before the expiry claim contained in the token.
+ */
+final class CordovaApproovHttpTokenCache {
+
+    // Default safety margin before token expiry after which a cached token is no longer served
+    static final long DEFAULT_EXPIRY_MARGIN_MILLIS = 30000;
+
+    // A token together with the time (in milliseconds since the epoch) at which it expires
+    private static final class CachedToken {
+        final String token;
+        final long expiresAtMillis;
+
+        CachedToken(String token, long expiresAtMillis) {
+            this.token = token;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    // Map of domains to domain specific tokens
+    private final ConcurrentMap<String, CachedToken> domainTokens = new ConcurrentHashMap<String, CachedToken>();
+
+    // Slot for the generic token, fetched without specifying a URL
+    private volatile CachedToken genericToken;
+
+    // Safety margin before token expiry after which a cached token is no longer served
+    private volatile long expiryMarginMillis = DEFAULT_EXPIRY_MARGIN_MILLIS;
+
+    // Number of times the cache has been cleared. Tokens whose fetch started before the cache was last cleared are not
+    // added. Modifications are synchronized on the cache.
+    private volatile int epoch;
+
+    // Set the safety margin before token expiry after which a cached token is no longer served
+    void setExpiryMarginMillis(long expiryMarginMillis) {
+        if (expiryMarginMillis < 0) {
+            throw new IllegalArgumentException("Approov token expiry margin must not be negative");
+        }
+        this.expiryMarginMillis = expiryMarginMillis;
+    }
+
+    // Get the cached token for a domain (domain == null signifies the generic token) if it can still be served for at
+    // least the given time. Returns null if there is no cached token or if the cached token is about to expire.
+    String get(String domain, long minValidityMillis) {
+        CachedToken cachedToken = (domain == null) ? genericToken : domainTokens.get(domain);
+        if (cachedToken == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() + minValidityMillis + expiryMarginMillis >= cachedToken.expiresAtMillis) {
+            return null;
+        }
+        return cachedToken.token;
+    }
+
+    // Get the number of times the cache has been cleared, to be passed to put() for a token fetched afterwards
+    int getEpoch() {
+        return epoch;
+    }
+
+    // Add a token for a domain (domain == null signifies the generic token) to the cache, unless the cache has been
+    // cleared since the token fetch started in the given epoch. Tokens that do not carry a readable expiry claim are
+    // not cached.
+    synchronized void put(String domain, String token, int fetchEpoch) {
+        if (fetchEpoch != epoch) {
+            return;
+        }
+        long expiresAtMillis = decodeExpiryMillis(token);
+        if (expiresAtMillis <= 0) {
+            evict(domain);
+            return;
+        }
+        CachedToken cachedToken = new CachedToken(token, expiresAtMillis);
+        if (domain == null) {
+            genericToken = cachedToken;
+        } else {
+            domainTokens.put(domain, cachedToken);
+        }
+    }
+
+    // Remove the cached token for a domain (domain == null signifies the generic token)
+    void evict(String domain) {
+        if (domain == null) {
+            genericToken = null;
+        } else {
+            domainTokens.remove(domain);
+        }
+    }
+
+    // Remove all cached tokens, e.g. because the token payload value has changed, and reject tokens whose fetch is
+    // still in progress
+    synchronized void clear() {
+        epoch += 1;
+        genericToken = null;
+        domainTokens.clear();
+    }
+
+    // Decode the expiry claim ("exp", in seconds since the epoch) of a JWT. Returns 0 if the token is not a JWT or
+    // does not carry an expiry claim.
+    static long decodeExpiryMillis(String token) {
+        if (token == null) {
+            return 0;
+        }
+        int payloadStart = token.indexOf('.');
+        int payloadEnd = (payloadStart < 0) ? -1 : token.indexOf('.', payloadStart + 1);
+        if (payloadEnd < 0) {
+            return 0;
+        }
+        try {
+            byte[] payload = Base64.decode(token.substring(payloadStart + 1, payloadEnd),
+                Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+            JSONObject claims = new JSONObject(new String(payload, "UTF-8"));
+            return claims.optLong("exp", 0) * 1000;
+        } catch (IllegalArgumentException e) {
+            return 0;
+        } catch (JSONException e) {
+            return 0;
+        } catch (UnsupportedEncodingException e) {
+            return 0;
+        }
+    }
+
+}
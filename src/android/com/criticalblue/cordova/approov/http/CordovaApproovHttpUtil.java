@@ -15,6 +15,8 @@
 
 package com.criticalblue.cordova.approov.http;
 
+import android.util.Base64;
+
 import com.criticalblue.attestationlibrary.ApproovAttestation;
 import com.criticalblue.attestationlibrary.TokenInterface;
 import com.criticalblue.cordova.approov.http.CordovaApproovHttpPinningVerifier;
@@ -27,14 +29,32 @@ import com.synconset.cordovahttp.CordovaHttpPlugin;
 import java.io.IOException;
 
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 
+import java.nio.ByteBuffer;
+
+import java.security.cert.CertificateException;
+
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 
 public final class CordovaApproovHttpUtil {
 
@@ -44,13 +64,228 @@ public final class CordovaApproovHttpUtil {
     // Default token value indicating "no token"
     private static final String NO_TOKEN = "";
     
-    // Map of protected domains to a flag that indicates whether the connection that transmits the Approov token should
-    // be MITM protected. Synchronization provided by addApproovProtectedDomain() and isApproovProtected()
-    private static Map<String, Boolean> protectedDomains = new HashMap<String, Boolean>();
+    // Map of protected domain patterns (exact domains or wildcards such as "*.example.com") to their configuration,
+    // consisting of the protection policy, which indicates whether the connection that transmits the Approov token
+    // should be MITM protected, and the path-prefix rules selecting the protected requests. Synchronization provided by
+    // addApproovProtectedDomain().
+    private static final Map<String, CordovaApproovHttpProtectedDomain> protectedDomains =
+        new HashMap<String, CordovaApproovHttpProtectedDomain>();
+
+    // Map of protected domain patterns restored from a snapshot to their configuration, held back until the Approov
+    // library has been initialized. Until then, tokens cannot be fetched and requests to these domains would only be
+    // delayed. Synchronization provided by addRestoredProtectedDomain().
+    private static final Map<String, CordovaApproovHttpProtectedDomain> restoredProtectedDomains =
+        new HashMap<String, CordovaApproovHttpProtectedDomain>();
+
+    // Immutable index of the protected domain patterns. Readers access the current snapshot without locking,
+    // addApproovProtectedDomain() publishes a rebuilt index.
+    private static volatile CordovaApproovHttpDomainTrie<CordovaApproovHttpProtectedDomain> protectedDomainIndex =
+        CordovaApproovHttpDomainTrie.build(Collections.<String, CordovaApproovHttpProtectedDomain>emptyMap());
+
+    // Immutable index mapping the protected domain patterns to themselves, published together with
+    // protectedDomainIndex
+    private static volatile CordovaApproovHttpDomainTrie<String> protectedDomainPatternIndex =
+        CordovaApproovHttpDomainTrie.build(Collections.<String, String>emptyMap());
+
+    // Cache of Approov tokens, keyed by domain, that avoids a blocking token fetch for every request
+    private static final CordovaApproovHttpTokenCache tokenCache = new CordovaApproovHttpTokenCache();
+
+    // Maximum time to wait for the Approov library to become ready or for a configuration in progress to complete
+    private static final long APPROOV_READY_WAIT_MILLIS = 10000;
+
+    // Released once the Approov library has been initialized
+    private static final CountDownLatch approovReady = new CountDownLatch(1);
+
+    // Number of configurations in progress that add or modify protected domains. Requests wait for these to complete
+    // so that they are not sent unprotected to a domain that is just being added. Other configurations do not delay
+    // requests. Modifications and waiting are synchronized on configurationMonitor.
+    private static final AtomicInteger pendingConfigurations = new AtomicInteger();
+    private static final Object configurationMonitor = new Object();
+
+    // Key used for the generic token in the map of token fetches in progress
+    private static final String GENERIC_TOKEN_KEY = "";
+
+    // Maximum time to wait for a token fetch for the same domain that is already in progress on another thread
+    private static final long TOKEN_FETCH_WAIT_MILLIS = 30000;
+
+    // Token fetch in progress whose result is shared by all threads requesting a token for the same domain, together
+    // with the token cache epoch in which it started
+    private static final class TokenFetch {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final int epoch;
+        private volatile String approovToken = NO_TOKEN;
+
+        TokenFetch(int epoch) {
+            this.epoch = epoch;
+        }
+
+        // Publish the result of the token fetch to all waiting threads
+        void complete(String approovToken) {
+            this.approovToken = approovToken;
+            done.countDown();
+        }
+
+        // Wait (bounded) for the result of the token fetch
+        String await() {
+            try {
+                if (!done.await(TOKEN_FETCH_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return NO_TOKEN;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return NO_TOKEN;
+            }
+            return approovToken;
+        }
+    }
+
+    // Map of domains (or GENERIC_TOKEN_KEY) to the token fetch currently in progress for the domain
+    private static final ConcurrentMap<String, TokenFetch> tokenFetches = new ConcurrentHashMap<String, TokenFetch>();
+
+    // Circuit breaker, keyed by domain (or GENERIC_TOKEN_KEY), that stops token fetches while attestation keeps failing
+    private static final CordovaApproovHttpCircuitBreaker circuitBreaker = new CordovaApproovHttpCircuitBreaker();
+
+    // Background refresh of the tokens and pins of recently used protected domains
+    private static final CordovaApproovHttpRefreshScheduler refreshScheduler =
+        new CordovaApproovHttpRefreshScheduler();
+
+    // Flag indicating whether the OkHttp transport has ever been selected. OkHttp is an optional dependency, so the
+    // transport's class is only loaded once the transport has been selected.
+    private static volatile boolean isOkHttpTransportLoaded;
+
+    // Signal that the Approov library has been initialized and start protecting the domains restored from a snapshot
+    static synchronized void setApproovReady() {
+        approovReady.countDown();
+        for (Map.Entry<String, CordovaApproovHttpProtectedDomain> entry : restoredProtectedDomains.entrySet()) {
+            addProtectedDomain(entry.getKey(), entry.getValue());
+        }
+        restoredProtectedDomains.clear();
+    }
+
+    // Wait (bounded) for the Approov library to be initialized. Returns false if it is not ready in time.
+    static boolean awaitApproovReady() {
+        if (approovReady.getCount() == 0) {
+            return true;
+        }
+        try {
+            return approovReady.await(APPROOV_READY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Signal that a configuration adding or modifying protected domains has been requested and will be applied in the
+    // background
+    static void beginConfiguration() {
+        synchronized (configurationMonitor) {
+            pendingConfigurations.incrementAndGet();
+        }
+    }
+
+    // Signal that a configuration requested earlier has been applied
+    static void endConfiguration() {
+        synchronized (configurationMonitor) {
+            if (pendingConfigurations.decrementAndGet() == 0) {
+                configurationMonitor.notifyAll();
+            }
+        }
+    }
+
+    // Wait (bounded) for all configurations in progress that add or modify protected domains to be applied
+    static void awaitConfiguration() {
+        if (pendingConfigurations.get() == 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + APPROOV_READY_WAIT_MILLIS;
+        synchronized (configurationMonitor) {
+            long remainingMillis = APPROOV_READY_WAIT_MILLIS;
+            while (pendingConfigurations.get() > 0 && remainingMillis > 0) {
+                try {
+                    configurationMonitor.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remainingMillis = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    // Set the safety margin (in seconds) before token expiry after which a cached token is no longer used
+    public static void setTokenExpiryMargin(long seconds) {
+        tokenCache.setExpiryMarginMillis(seconds * 1000);
+    }
+
+    // Set the number of consecutive failed token fetches for a domain after which token fetches for the domain are
+    // suspended
+    public static void setCircuitBreakerThreshold(int failureThreshold) {
+        circuitBreaker.setFailureThreshold(failureThreshold);
+    }
+
+    // Set the time (in seconds) for which token fetches are suspended after the failure threshold has first been
+    // reached, and the maximum time after repeated failures
+    public static void setCircuitBreakerCooldown(long cooldownSeconds, long maxCooldownSeconds) {
+        circuitBreaker.setCooldownMillis(cooldownSeconds * 1000, maxCooldownSeconds * 1000);
+    }
+
+    // Set the number of most recently used protected domains whose tokens and pins are refreshed in the background, 0
+    // disables the background refresh
+    public static void setTokenRefreshDomains(int maxDomains) {
+        refreshScheduler.setMaxDomains(maxDomains);
+    }
+
+    // Start refreshing tokens and pins in the background, e.g. because the app has come to the foreground
+    public static void startTokenRefresh() {
+        refreshScheduler.start();
+    }
+
+    // Stop refreshing tokens and pins in the background, e.g. because the app has gone to the background
+    public static void stopTokenRefresh() {
+        refreshScheduler.stop();
+    }
 
-    // Add a domain to the list of protected domains. The domain is extracted from the URL argument. The URL's protocol
-    // must be HTTPS.
-    public static synchronized void addApproovProtectedDomain(URL url, boolean isMITMProtected) {
+    // Get the circuit breaker states of all domains for which token fetches have failed
+    public static JSONArray getCircuitBreakerStates() throws JSONException {
+        return circuitBreaker.getStates(GENERIC_TOKEN_KEY);
+    }
+
+    // Set the time in seconds for which a replaced or invalidated pin remains accepted by the pin check
+    public static void setPinOverlapWindow(long seconds) {
+        CordovaApproovHttpPinStore.setOverlapMillis(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    // Discard all cached Approov tokens, e.g. because the token payload value has changed
+    public static void clearTokenCache() {
+        tokenCache.clear();
+    }
+
+    // Discard the cached Approov token for a domain, e.g. because the domain's pinned certificate has been invalidated
+    static void evictCachedToken(String domain) {
+        tokenCache.evict(domain);
+    }
+
+    // Add a domain to the list of protected domains. The domain is extracted from the URL argument and may be a
+    // wildcard ("*.example.com") that matches all subdomains of a domain. The URL's protocol must be HTTPS.
+    public static void addApproovProtectedDomain(URL url, boolean isMITMProtected) {
+        addApproovProtectedDomain(url, isMITMProtected,
+            Collections.<String>emptyList(), Collections.<String>emptyList());
+    }
+
+    // Add a domain to the list of protected domains, protecting only requests whose path matches the include path
+    // prefixes (all paths if there are none) and does not match the exclude path prefixes, the longest matching prefix
+    // taking precedence. If the domain is already protected, its path-prefix rules are merged such that no path loses
+    // protection.
+    public static void addApproovProtectedDomain(URL url, boolean isMITMProtected,
+            List<String> includePaths, List<String> excludePaths) {
+        addApproovProtectedDomain(url, isMITMProtected, includePaths, excludePaths, Collections.<String>emptyList());
+    }
+
+    // Add a domain to the list of protected domains as above, additionally accepting the backup pins (base64 encoded
+    // SHA-256 digests of SubjectPublicKeyInfo) in the pin check of MITM protected requests to the domain. Backup pins
+    // are added to those of an already protected domain.
+    public static synchronized void addApproovProtectedDomain(URL url, boolean isMITMProtected,
+            List<String> includePaths, List<String> excludePaths, List<String> backupPins) {
         // Check for HTTPS here to report error early
         if (!"https".equals(url.getProtocol())) {
             throw new IllegalArgumentException("Approov protected domain's URL does not specify HTTPS protocol");
@@ -60,56 +295,301 @@ public final class CordovaApproovHttpUtil {
         if (domain == null || domain.isEmpty()) {
             throw new IllegalArgumentException("Approov protected domain's URL does not specify domain");
         }
-        // Check that MITM protection is not being downgraded
-        if (protectedDomains.get(url.getHost()) != null && protectedDomains.get(url.getHost()) && !isMITMProtected) {
+        // Check that any wildcard only makes up the leftmost label of the domain
+        if (!CordovaApproovHttpDomainTrie.isValidPattern(domain)) {
+            throw new IllegalArgumentException("Approov protected domain's wildcard is invalid");
+        }
+        // Check that MITM protection is not being downgraded, either for the domain itself or for a domain that is
+        // already covered by a wildcard
+        CordovaApproovHttpProtectedDomain coveringDomain = CordovaApproovHttpDomainTrie.isWildcard(domain)
+            ? protectedDomainIndex.lookupWildcard(
+                domain.substring(CordovaApproovHttpDomainTrie.WILDCARD_PREFIX.length()))
+            : protectedDomainIndex.lookup(domain);
+        if (coveringDomain != null && coveringDomain.policy.isMITMProtected() && !isMITMProtected) {
             // Downgrading the MITM protection of an Approov protected domain is not permitted
             throw new IllegalArgumentException("Approov protected domain's configuration invalid");
         }
-        // Update protected domains
-        protectedDomains.put(url.getHost(), isMITMProtected);
+        addProtectedDomain(domain, new CordovaApproovHttpProtectedDomain(
+            CordovaApproovHttpDomainPolicy.forProtectedDomain(isMITMProtected),
+            CordovaApproovHttpPathRules.create(includePaths, excludePaths), decodePins(backupPins)));
     }
 
-    // Check whether an URL is Approov protected
-    public static synchronized boolean isApproovProtected(URL url) {
-        // Approov only protects URLs whose protocol is HTTPS
-        if (!"https".equals(url.getProtocol())) {
-            return false;
+    // Add a validated domain (or wildcard domain pattern) to the protected domains, merging it with any existing
+    // configuration of the domain, and publish the rebuilt index
+    static synchronized void addProtectedDomain(String domain, CordovaApproovHttpProtectedDomain protectedDomain) {
+        CordovaApproovHttpProtectedDomain previousProtectedDomain = protectedDomains.get(domain);
+        if (previousProtectedDomain != null) {
+            protectedDomain = previousProtectedDomain.merge(protectedDomain);
         }
-        // Check that the domain is protected
-        String domain = url.getHost();
-        return protectedDomains.containsKey(domain);
+        protectedDomains.put(domain, protectedDomain);
+        Map<String, String> patterns = new HashMap<String, String>();
+        for (String pattern : protectedDomains.keySet()) {
+            patterns.put(pattern, pattern);
+        }
+        protectedDomainPatternIndex = CordovaApproovHttpDomainTrie.build(patterns);
+        protectedDomainIndex = CordovaApproovHttpDomainTrie.build(protectedDomains);
     }
 
-    // Check whether an URL is Approov protected, including MITM protection
-    public static synchronized boolean isApproovMITMProtected(URL url) {
+    // Add a domain (or wildcard domain pattern) restored from a snapshot to the protected domains as above. Until the
+    // Approov library has been initialized, the domain is held back, so that requests to the domain are not delayed by
+    // waiting for a token that cannot be fetched yet.
+    static synchronized void addRestoredProtectedDomain(String domain,
+            CordovaApproovHttpProtectedDomain protectedDomain) {
+        if (approovReady.getCount() == 0) {
+            addProtectedDomain(domain, protectedDomain);
+        } else {
+            restoredProtectedDomains.put(domain, protectedDomain);
+        }
+    }
+
+    // Get a copy of the protected domains, keyed by domain (or wildcard domain pattern), including restored domains
+    // that are held back until the Approov library has been initialized
+    static synchronized Map<String, CordovaApproovHttpProtectedDomain> getProtectedDomains() {
+        Map<String, CordovaApproovHttpProtectedDomain> domains =
+            new HashMap<String, CordovaApproovHttpProtectedDomain>(restoredProtectedDomains);
+        for (Map.Entry<String, CordovaApproovHttpProtectedDomain> entry : protectedDomains.entrySet()) {
+            CordovaApproovHttpProtectedDomain restoredProtectedDomain = domains.get(entry.getKey());
+            domains.put(entry.getKey(),
+                (restoredProtectedDomain == null) ? entry.getValue() : restoredProtectedDomain.merge(entry.getValue()));
+        }
+        return domains;
+    }
+
+    // Decode base64 encoded SHA-256 digests of SubjectPublicKeyInfo
+    private static Set<ByteBuffer> decodePins(List<String> pins) {
+        if (pins.isEmpty()) {
+            return Collections.<ByteBuffer>emptySet();
+        }
+        Set<ByteBuffer> digests = new HashSet<ByteBuffer>();
+        for (String pin : pins) {
+            byte[] digest = Base64.decode(pin, Base64.DEFAULT);
+            if (digest.length != 32) {
+                throw new IllegalArgumentException("Approov protected domain's backup pin is invalid");
+            }
+            digests.add(ByteBuffer.wrap(digest));
+        }
+        return Collections.unmodifiableSet(digests);
+    }
+
+    // Check whether a public key (given by the SHA-256 digest of its SubjectPublicKeyInfo) is configured as a backup
+    // pin for a host
+    static boolean isBackupPin(String hostname, byte[] spkiDigest) {
+        CordovaApproovHttpProtectedDomain protectedDomain = protectedDomainIndex.lookup(hostname);
+        return protectedDomain != null && protectedDomain.backupPins.contains(ByteBuffer.wrap(spkiDigest));
+    }
+
+    // Get the backup pins (SHA-256 digests of SubjectPublicKeyInfo) configured for a host
+    static Set<ByteBuffer> getBackupPins(String hostname) {
+        CordovaApproovHttpProtectedDomain protectedDomain = protectedDomainIndex.lookup(hostname);
+        return (protectedDomain == null) ? Collections.<ByteBuffer>emptySet() : protectedDomain.backupPins;
+    }
+
+    // Get the version of the protected domains' configuration, which changes whenever a domain is added or updated
+    static Object getProtectedDomainsVersion() {
+        return protectedDomainIndex;
+    }
+
+    // Look up the Approov protection policy for an URL. Exact domain matches take precedence over wildcards, and more
+    // specific wildcards over less specific ones. Requests whose path is not selected by the domain's path-prefix rules
+    // are unprotected.
+    public static CordovaApproovHttpDomainPolicy lookupPolicy(URL url) {
         // Approov only protects URLs whose protocol is HTTPS
         if (!"https".equals(url.getProtocol())) {
-            return false;
+            return CordovaApproovHttpDomainPolicy.UNPROTECTED;
         }
-        // Check whether the domain should be Approov protected and the Approov token should be protected from MITM attack
-        String domain = url.getHost();
-        Boolean isMITMProtected = protectedDomains.get(domain);
-        return isMITMProtected != null && isMITMProtected.booleanValue();
+        // Check whether the domain is protected
+        CordovaApproovHttpProtectedDomain protectedDomain = protectedDomainIndex.lookup(url.getHost());
+        return (protectedDomain == null) ? CordovaApproovHttpDomainPolicy.UNPROTECTED
+            : protectedDomain.resolve(url.getPath());
+    }
+
+    // Check whether an URL is Approov protected
+    public static boolean isApproovProtected(URL url) {
+        return lookupPolicy(url).isProtected();
+    }
+
+    // Get the protected domain pattern (an exact domain or a wildcard) matching a host name. Returns null if no
+    // protected domain matches.
+    static String getProtectedDomainPattern(String host) {
+        return protectedDomainPatternIndex.lookup(host);
+    }
+
+    // Check whether an URL is Approov protected, including MITM protection
+    public static boolean isApproovMITMProtected(URL url) {
+        return lookupPolicy(url).isMITMProtected();
     }
 
     // If no URL is specified (url == null), fetch a generic Approov token, otherwise fetch a domain specific token for
-    // the domain given in the URL.
+    // the domain given in the URL. A cached token is used if it is not about to expire. Only one token fetch per domain
+    // is performed at a time, concurrent requests for the same domain wait for and share its result. While the circuit
+    // breaker for the domain is open, no token is fetched.
     public static String fetchApproovToken(URL url) {
+        return fetchApproovToken(url, 0);
+    }
+
+    // Fetch an Approov token for a host, bypassing the token cache, so that the Approov library obtains the host's
+    // certificate. Like other token fetches, the fetch is shared with a token fetch for the host already in progress
+    // and not made while the circuit breaker for the host is open. Returns false if no token could be obtained.
+    static boolean fetchApproovTokenForCert(String hostname) {
+        URL url;
+        try {
+            url = new URL("https", hostname, "/");
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        return fetchApproovToken(url, 0, false) != NO_TOKEN;
+    }
+
+    // Fetch an Approov token as above, using a cached token only if it can still be used for at least the given time.
+    // Token fetches made to refresh cached tokens ahead of their expiry (minValidityMillis > 0) do not count towards
+    // the token cache metrics.
+    private static String fetchApproovToken(URL url, long minValidityMillis) {
+        return fetchApproovToken(url, minValidityMillis, true);
+    }
+
+    // Fetch an Approov token as above, bypassing the token cache unless isCacheUsed is set
+    private static String fetchApproovToken(URL url, long minValidityMillis, boolean isCacheUsed) {
+        // Use the cached token for the domain, if available, (domain == null) signifies the generic token
+        String domain = (url == null) ? null : url.getHost();
+        String approovToken;
+        if (isCacheUsed) {
+            approovToken = tokenCache.get(domain, minValidityMillis);
+            if (approovToken != null) {
+                if (minValidityMillis == 0) {
+                    CordovaApproovHttpMetrics.increment(domain, CordovaApproovHttpMetrics.Counter.TOKEN_CACHE_HITS);
+                }
+                return approovToken;
+            }
+            if (minValidityMillis == 0) {
+                CordovaApproovHttpMetrics.increment(domain, CordovaApproovHttpMetrics.Counter.TOKEN_CACHE_MISSES);
+            }
+        }
+
+        // Tokens can only be fetched once the Approov library has been initialized
+        if (!awaitApproovReady()) {
+            return NO_TOKEN;
+        }
+
+        // Join the token fetch for the domain if one is already in progress. A fetch that started before the token
+        // cache was last cleared may return a token with a previous payload value, so it is superseded rather than
+        // joined.
+        String fetchKey = (domain == null) ? GENERIC_TOKEN_KEY : domain;
+        int epoch = tokenCache.getEpoch();
+        TokenFetch tokenFetch = new TokenFetch(epoch);
+        while (true) {
+            TokenFetch tokenFetchInProgress = tokenFetches.putIfAbsent(fetchKey, tokenFetch);
+            if (tokenFetchInProgress == null) {
+                break;
+            } else if (tokenFetchInProgress.epoch == tokenCache.getEpoch()) {
+                return tokenFetchInProgress.await();
+            } else if (tokenFetches.replace(fetchKey, tokenFetchInProgress, tokenFetch)) {
+                break;
+            }
+        }
+
+        // Set the token string to a value that signifies that no token could be obtained
+        approovToken = NO_TOKEN;
+        try {
+            // A token fetch that completed just before this one started may already have filled the cache
+            String cachedToken = isCacheUsed ? tokenCache.get(domain, minValidityMillis) : null;
+            if (cachedToken != null) {
+                approovToken = cachedToken;
+            } else if (circuitBreaker.allowRequest(fetchKey)) {
+                approovToken = fetchApproovTokenAndWait(url, domain, fetchKey, minValidityMillis, epoch);
+            } else {
+                CordovaApproovHttpMetrics.increment(domain,
+                    CordovaApproovHttpMetrics.Counter.CIRCUIT_BREAKER_REJECTIONS);
+            }
+        } finally {
+            tokenFetch.complete(approovToken);
+            tokenFetches.remove(fetchKey, tokenFetch);
+        }
+        return approovToken;
+    }
+
+    // Fetch a token from the Approov SDK, blocking until the fetch completes, and update the token cache, unless it has
+    // been cleared since the given epoch, and the circuit breaker
+    private static String fetchApproovTokenAndWait(URL url, String domain, String fetchKey, long minValidityMillis,
+            int epoch) {
         // Set the token string to a value that signifies that no token could be obtained
         String approovToken = NO_TOKEN;
 
-        // Fetch the token, (urlString == null) signifies generic token fetch
-        String urlString = (url == null) ? null : url.toString();
-        TokenInterface.ApproovResults approovAttestation = ApproovAttestation.shared().fetchApproovTokenAndWait(urlString);
-        if (approovAttestation.getResult() == ApproovAttestation.AttestationResult.SUCCESS) {
-            // If the fetch succeeded then we set the token string to the obtained token value
-            approovToken = approovAttestation.getToken();
+        boolean isSuccess = false;
+        long startNanos = CordovaApproovHttpMetrics.startTimer();
+        try {
+            // Fetch the token, (urlString == null) signifies generic token fetch
+            String urlString = (url == null) ? null : url.toString();
+            TokenInterface.ApproovResults approovAttestation =
+                ApproovAttestation.shared().fetchApproovTokenAndWait(urlString);
+            if (approovAttestation.getResult() == ApproovAttestation.AttestationResult.SUCCESS) {
+                // If the fetch succeeded then we set the token string to the obtained token value and cache it
+                approovToken = approovAttestation.getToken();
+                tokenCache.put(domain, approovToken, epoch);
+                isSuccess = true;
+            } else if (minValidityMillis == 0) {
+                // If the fetch failed then any cached token for the domain must not be used any longer. A failed
+                // refresh ahead of expiry leaves a cached token that can still be used in place.
+                tokenCache.evict(domain);
+            }
+        } finally {
+            CordovaApproovHttpMetrics.stopTimer(domain, CordovaApproovHttpMetrics.Timer.TOKEN_FETCH, startNanos);
+            if (isSuccess) {
+                circuitBreaker.recordSuccess(fetchKey);
+            } else {
+                CordovaApproovHttpMetrics.increment(domain, CordovaApproovHttpMetrics.Counter.TOKEN_FETCH_FAILURES);
+                circuitBreaker.recordFailure(fetchKey);
+            }
         }
         return approovToken;
     }
 
+    // Prefetch the Approov token and, for a MITM protected domain, the pinned certificate for the domain given in the
+    // URL, so that the first request to the domain does not need to wait for them. Returns true if the domain is
+    // protected and everything required for its requests could be obtained.
+    public static boolean prefetch(URL url) {
+        return prefetch(url, 0);
+    }
+
+    // Refresh the Approov token and, for a MITM protected domain, the pinned certificate for the domain given in the
+    // URL if the cached token expires within the given time, so that requests do not need to wait for a token fetch
+    // when it expires. Returns true if the domain is protected and everything required for its requests is available.
+    static boolean refresh(URL url, long minValidityMillis) {
+        return prefetch(url, minValidityMillis);
+    }
+
+    // Prefetch the Approov token and pinned certificate for a domain, using a cached token only if it can still be
+    // used for at least the given time
+    private static boolean prefetch(URL url, long minValidityMillis) {
+        // Only concrete domains whose protocol is HTTPS can be prefetched
+        String domain = url.getHost();
+        if (!"https".equals(url.getProtocol()) || domain == null || domain.isEmpty() || domain.indexOf('*') >= 0) {
+            return false;
+        }
+        awaitConfiguration();
+        CordovaApproovHttpProtectedDomain protectedDomain = protectedDomainIndex.lookup(domain);
+        if (protectedDomain == null) {
+            return false;
+        }
+        // Fetch the token the interceptor will use for the domain, (url == null) signifies generic token fetch
+        final boolean isMITMProtected = protectedDomain.policy.isMITMProtected();
+        String approovToken = fetchApproovToken(isMITMProtected ? url : null, minValidityMillis);
+        if (approovToken == NO_TOKEN) {
+            return false;
+        }
+        if (isMITMProtected) {
+            // Parse and store the pin for the domain ahead of the first handshake
+            try {
+                return CordovaApproovHttpPinStore.getPin(domain) != null;
+            } catch (CertificateException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // Set up Approov certificate pinning
     public static void setupApproovCertPinning(HttpRequest request) throws HttpRequestException {
+        long startNanos = CordovaApproovHttpMetrics.startTimer();
         // Set the hostname verifier on the connection (must be HTTPS)
         final HttpURLConnection connection = request.getConnection();
         if (!(connection instanceof HttpsURLConnection))
@@ -128,6 +608,42 @@ public final class CordovaApproovHttpUtil {
         // Create a hostname verifier that uses Approov's dynamic pinning approach and set it on the connection
         CordovaApproovHttpPinningVerifier verifier = new CordovaApproovHttpPinningVerifier(currentVerifier);
         httpsConnection.setHostnameVerifier(verifier);
+        CordovaApproovHttpMetrics.stopTimer(request.url().getHost(), CordovaApproovHttpMetrics.Timer.PINNING_SETUP,
+            startNanos);
+    }
+
+    // Select the transport for Approov protected requests: "urlconnection" (the default) sets up each request's
+    // connection individually, "okhttp" routes protected requests through a shared, pooled OkHttp client
+    public static void setTransport(String transport) {
+        if ("okhttp".equals(transport)) {
+            if (!isOkHttpAvailable()) {
+                throw new IllegalArgumentException("Approov transport \"okhttp\" requires the OkHttp library, "
+                    + "which must be added to the app");
+            }
+            CordovaApproovHttpOkHttpTransport.enable();
+            isOkHttpTransportLoaded = true;
+        } else if ("urlconnection".equals(transport)) {
+            if (isOkHttpTransportLoaded) {
+                CordovaApproovHttpOkHttpTransport.disable();
+            }
+        } else {
+            throw new IllegalArgumentException("Approov transport is invalid");
+        }
+    }
+
+    // Check whether the OkHttp library is available to the app
+    private static boolean isOkHttpAvailable() {
+        try {
+            Class.forName("okhttp3.OkHttpClient", false, CordovaApproovHttpUtil.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    // Get a snapshot of the plugin's metrics and reset them
+    public static JSONObject getMetrics() throws JSONException {
+        return CordovaApproovHttpMetrics.snapshotAndReset();
     }
 
     // Consumer (operates via side-effects) that sets up Approov protection for a request
@@ -135,21 +651,40 @@ public final class CordovaApproovHttpUtil {
         new CordovaHttpPlugin.IHttpRequestInterceptor() {
             @Override
             public void accept(HttpRequest request) {
+                long startNanos = CordovaApproovHttpMetrics.startTimer();
+                // Ensure that domains being added by a configuration in progress are protected
+                awaitConfiguration();
                 URL url = request.url();
-                if (isApproovProtected(url)) {
-                    final boolean isMITMProtected = isApproovMITMProtected(url);
-                    if (!isMITMProtected) {
-                        // Indicate that a non-URL-specific token should be requested and no MITM protection should be set up
-                        url = null;
-                    }
-                    // Fetch the Approov token
-                    String approovToken = fetchApproovToken(url);
-                    if (isMITMProtected && approovToken != NO_TOKEN) {
-                        // Only set up dynamic cert pinning if the request is MITM protected and we could obtain a token
-                        setupApproovCertPinning(request);
+                CordovaApproovHttpDomainPolicy policy = lookupPolicy(url);
+                // Metrics of protected requests are attributed to their domain
+                String metricsDomain = policy.isProtected() ? url.getHost() : null;
+                try {
+                    if (policy.isProtected()) {
+                        CordovaApproovHttpMetrics.increment(metricsDomain,
+                            CordovaApproovHttpMetrics.Counter.PROTECTED_REQUESTS);
+                        // Keep the token and pin for the domain fresh while it is in use
+                        refreshScheduler.recordUse(url);
+                        final boolean isMITMProtected = policy.isMITMProtected();
+                        if (!isMITMProtected) {
+                            // Indicate that a non-URL-specific token should be requested and no MITM protection should
+                            // be set up
+                            url = null;
+                        }
+                        // Fetch the Approov token
+                        String approovToken = fetchApproovToken(url);
+                        if (isMITMProtected && approovToken != NO_TOKEN && !(isOkHttpTransportLoaded
+                                && CordovaApproovHttpOkHttpTransport.isPinnedConnection(request.getConnection()))) {
+                            // Only set up dynamic cert pinning if the request is MITM protected and we could obtain a
+                            // token. Pinned connections of the OkHttp transport are pinned by its client.
+                            setupApproovCertPinning(request);
+                        }
+                        // Add Approov header containing the token to the request
+                        request.header("Approov-Token", approovToken);
                     }
-                    // Add Approov header containing the token to the request
-                    request.header("Approov-Token", approovToken);
+                } finally {
+                    CordovaApproovHttpMetrics.increment(metricsDomain, CordovaApproovHttpMetrics.Counter.REQUESTS);
+                    CordovaApproovHttpMetrics.stopTimer(metricsDomain, CordovaApproovHttpMetrics.Timer.INTERCEPT,
+                        startNanos);
                 }
             }
         };
@@ -31,6 +31,22 @@ var approovHttp = {
         config = config || {};
 
         return cordova.exec(success, failure, "CordovaApproovHttpPlugin", 'approovConfigure', [config]);
+    },
+    approovPrefetch: function (domains, success, failure) {
+        handleMissingCallbacks(success, failure);
+        domains = domains || [];
+
+        return cordova.exec(success, failure, "CordovaApproovHttpPlugin", 'approovPrefetch', [domains]);
+    },
+    approovGetCircuitBreakerStates: function (success, failure) {
+        handleMissingCallbacks(success, failure);
+
+        return cordova.exec(success, failure, "CordovaApproovHttpPlugin", 'approovGetCircuitBreakerStates', []);
+    },
+    approovGetMetrics: function (success, failure) {
+        handleMissingCallbacks(success, failure);
+
+        return cordova.exec(success, failure, "CordovaApproovHttpPlugin", 'approovGetMetrics', []);
     }
 }
 